@@ -0,0 +1,85 @@
+package in.kevinj.natladder.bench;
+
+import in.kevinj.natladder.centralrelay.CentralRelayClientRegistry;
+import in.kevinj.natladder.common.netimpl.ClientManagerNio;
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
+import in.kevinj.natladder.common.util.CliHelper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens connections to a central relay as fast as a number of threads can and
+ * reports how many the relay accepted per second. A connect that takes longer
+ * than half a second counts as slow: its SYN was dropped and retransmitted.
+ *
+ * Arguments: [connections=3000] [threads=16] [accept backlog=1024]
+ *   [max accepts per select=64]
+ */
+public class AcceptStorm {
+	private static final long SLOW_CONNECT = TimeUnit.MILLISECONDS.toNanos(500);
+
+	public static void main(String[] args) throws Exception {
+		final int connections = CliHelper.tryParse(args, 0, 3000);
+		int threads = CliHelper.tryParse(args, 1, 16);
+		EventLoopOptions options = new EventLoopOptions();
+		options.acceptBacklog = CliHelper.tryParse(args, 2, options.acceptBacklog);
+		options.maxAcceptsPerSelect = CliHelper.tryParse(args, 3, options.maxAcceptsPerSelect);
+
+		CentralRelayClientRegistry central = new CentralRelayClientRegistry();
+		ClientManagerNio<CentralRelayClientRegistry> centralRelay = new ClientManagerNio<CentralRelayClientRegistry>(central, options);
+		central.setClientManager(centralRelay);
+		centralRelay.listen(central.internalNodeFactory(), LoopbackLadder.HOST, LoopbackLadder.CENTRAL_RELAY_PORT, Collections.<String, Object>emptyMap());
+		Thread.sleep(500);
+
+		final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+		final AtomicInteger next = new AtomicInteger(), slow = new AtomicInteger(), failed = new AtomicInteger();
+		List<Thread> connectors = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			Thread connector = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (next.getAndIncrement() < connections) {
+						long began = System.nanoTime();
+						try {
+							Socket s = new Socket();
+							s.connect(new InetSocketAddress(LoopbackLadder.HOST, LoopbackLadder.CENTRAL_RELAY_PORT), 30000);
+							sockets.add(s);
+						} catch (IOException e) {
+							failed.incrementAndGet();
+						}
+						if (System.nanoTime() - began > SLOW_CONNECT)
+							slow.incrementAndGet();
+					}
+				}
+			});
+			connector.start();
+			connectors.add(connector);
+		}
+		for (Thread t : connectors)
+			t.join();
+		// a connect completes once the kernel queues it, so wait for the relay to catch up
+		long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+		while (centralRelay.getAcceptLatency().getCount() < connections - failed.get() && System.nanoTime() < deadline)
+			Thread.sleep(1);
+		long elapsed = System.nanoTime() - start;
+
+		long accepted = centralRelay.getAcceptLatency().getCount();
+		System.out.println("backlog=" + options.acceptBacklog + " acceptsPerSelect=" + options.maxAcceptsPerSelect
+			+ " accepted=" + accepted + "/" + connections
+			+ " accepted/s=" + accepted * 1000000000 / elapsed
+			+ " slowConnects=" + slow.get()
+			+ " failed=" + failed.get());
+		for (Socket s : sockets)
+			s.close();
+		centralRelay.close("benchmark finished", null);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,178 @@
+package in.kevinj.natladder.bench;
+
+import in.kevinj.natladder.centralrelay.CentralRelayClientRegistry;
+import in.kevinj.natladder.common.model.ClientType;
+import in.kevinj.natladder.common.netimpl.ClientManagerNio;
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
+import in.kevinj.natladder.entrynode.EntryNodeClientRegistry;
+import in.kevinj.natladder.exitnode.ExitNodeClientRegistry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A central relay, an exit node and an entry node in one JVM, connected over
+ * loopback, with an echo server as the exit node's terminus. Anything written
+ * to a socket from {@link #connect()} passes through all three routers and
+ * comes back on the same socket.
+ */
+public class LoopbackLadder {
+	public static final String HOST = "127.0.0.1";
+	public static final int CENTRAL_RELAY_PORT = 13425;
+	public static final int ENTRY_NODE_PORT = 18080;
+
+	private class EchoAcceptor implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket s = terminus.accept();
+					s.setTcpNoDelay(true);
+					Thread t = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							byte[] b = new byte[64 * 1024];
+							try {
+								InputStream in = s.getInputStream();
+								OutputStream out = s.getOutputStream();
+								int read;
+								while ((read = in.read(b)) != -1)
+									out.write(b, 0, read);
+								s.close();
+							} catch (IOException e) {
+								// the other end went away
+							}
+						}
+					}, "echo-terminus");
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private final ServerSocket terminus;
+	private final ClientManagerNio<CentralRelayClientRegistry> centralRelay;
+	private final ClientManagerNio<ExitNodeClientRegistry> exitNode;
+	private final ClientManagerNio<EntryNodeClientRegistry> entryNode;
+
+	public LoopbackLadder(EventLoopOptions options) throws IOException, InterruptedException {
+		terminus = new ServerSocket(0, 1024, InetAddress.getByName(HOST));
+		Thread t = new Thread(new EchoAcceptor(), "echo-acceptor");
+		t.setDaemon(true);
+		t.start();
+
+		CentralRelayClientRegistry central = new CentralRelayClientRegistry();
+		centralRelay = new ClientManagerNio<CentralRelayClientRegistry>(central, options);
+		central.setClientManager(centralRelay);
+		centralRelay.listen(central.internalNodeFactory(), HOST, CENTRAL_RELAY_PORT, Collections.<String, Object>emptyMap());
+		Thread.sleep(300);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("identifier", "bench");
+		properties.put("password", "bench");
+		properties.put("connectToPort", Integer.valueOf(ENTRY_NODE_PORT));
+		ExitNodeClientRegistry exit = new ExitNodeClientRegistry(ClientType.EXIT_NODE, HOST, terminus.getLocalPort());
+		exitNode = new ClientManagerNio<ExitNodeClientRegistry>(exit, options);
+		exit.setClientManager(exitNode);
+		exitNode.connect(exit.internalNodeFactory(), HOST, CENTRAL_RELAY_PORT, Collections.unmodifiableMap(properties));
+		Thread.sleep(300);
+
+		properties = new HashMap<String, Object>();
+		properties.put("identifier", "bench");
+		properties.put("password", "bench");
+		EntryNodeClientRegistry entry = new EntryNodeClientRegistry(ClientType.ENTRY_NODE);
+		entryNode = new ClientManagerNio<EntryNodeClientRegistry>(entry, options);
+		entry.setClientManager(entryNode);
+		entryNode.connect(entry.internalNodeFactory(), HOST, CENTRAL_RELAY_PORT, Collections.unmodifiableMap(properties));
+		Thread.sleep(500);
+	}
+
+	/**
+	 * Returns only once the pipe to the terminus is up. The entry node queues
+	 * whatever it reads before then without any limit, so a client that starts
+	 * streaming right away could fill the buffer cache before the pipe is made.
+	 */
+	public Socket connect() throws IOException {
+		Socket s = new Socket(HOST, ENTRY_NODE_PORT);
+		s.setTcpNoDelay(true);
+		s.setSoTimeout(30000);
+		s.getOutputStream().write(0);
+		if (s.getInputStream().read() == -1)
+			throw new IOException("Terminus hung up");
+		return s;
+	}
+
+	public ClientManagerNio<CentralRelayClientRegistry> getCentralRelay() {
+		return centralRelay;
+	}
+
+	public ClientManagerNio<ExitNodeClientRegistry> getExitNode() {
+		return exitNode;
+	}
+
+	public ClientManagerNio<EntryNodeClientRegistry> getEntryNode() {
+		return entryNode;
+	}
+
+	public void close() throws IOException {
+		entryNode.close("benchmark finished", null);
+		exitNode.close("benchmark finished", null);
+		centralRelay.close("benchmark finished", null);
+		terminus.close();
+	}
+
+	/**
+	 * Sums one counter of /proc/self/task/[tid]/io over every event loop thread,
+	 * e.g. "syscw" for the number of write() and writev() calls they made.
+	 * Returns -1 where the kernel doesn't provide per-thread I/O accounting.
+	 */
+	public static long eventLoopIoCounter(String name) {
+		File[] tasks = new File("/proc/self/task").listFiles();
+		if (tasks == null)
+			return -1;
+
+		long sum = 0;
+		boolean found = false;
+		for (File task : tasks) {
+			try {
+				// native thread names are cut off at 15 characters
+				if (!readLine(new File(task, "comm"), null).startsWith("event-loop"))
+					continue;
+				String line = readLine(new File(task, "io"), name + ":");
+				if (line != null) {
+					sum += Long.parseLong(line.substring(name.length() + 1).trim());
+					found = true;
+				}
+			} catch (IOException e) {
+				// thread exited while we were looking
+			}
+		}
+		return found ? sum : -1;
+	}
+
+	private static String readLine(File f, String prefix) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				if (prefix == null || line.startsWith(prefix))
+					return line;
+			return prefix == null ? "" : null;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package in.kevinj.natladder.bench;
+
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
+import in.kevinj.natladder.common.util.CliHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One bulk client streams 64KB writes through a {@link LoopbackLadder} while
+ * interactive clients send 64 byte requests every 5ms and time the echoes.
+ * Shows how much a bulk sender delays everyone else on the same event loop.
+ *
+ * Arguments: [interactive clients=4] [seconds=4] [read budget=65536]
+ *   [send queue high watermark=1048576]
+ *
+ * The low watermark is set to a quarter of the high one.
+ */
+public class MixedLatency {
+	public static void main(String[] args) throws Exception {
+		int clients = CliHelper.tryParse(args, 0, 4);
+		final long duration = CliHelper.tryParse(args, 1, 4) * 1000L;
+		EventLoopOptions options = new EventLoopOptions();
+		options.readBudget = CliHelper.tryParse(args, 2, options.readBudget);
+		options.sendQueueHighWatermark = CliHelper.tryParse(args, 3, options.sendQueueHighWatermark);
+		options.sendQueueLowWatermark = options.sendQueueHighWatermark / 4;
+
+		LoopbackLadder ladder = new LoopbackLadder(options);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong bulkBytes = new AtomicLong();
+		final Socket bulk = ladder.connect();
+		Thread bulkWriter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] b = new byte[64 * 1024];
+				try {
+					OutputStream out = bulk.getOutputStream();
+					while (!stop.get())
+						out.write(b);
+				} catch (IOException e) {
+					// closed at the end
+				}
+			}
+		});
+		Thread bulkReader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] b = new byte[64 * 1024];
+				try {
+					InputStream in = bulk.getInputStream();
+					int read;
+					while ((read = in.read(b)) != -1)
+						bulkBytes.addAndGet(read);
+				} catch (IOException e) {
+					// closed at the end
+				}
+			}
+		});
+		bulkWriter.setDaemon(true);
+		bulkReader.setDaemon(true);
+		bulkWriter.start();
+		bulkReader.start();
+		Thread.sleep(1000);
+
+		final List<Long> samples = Collections.synchronizedList(new ArrayList<Long>());
+		List<Thread> threads = new ArrayList<Thread>();
+		long bulkBefore = bulkBytes.get();
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final Socket s = ladder.connect();
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] request = new byte[64], response = new byte[64];
+					List<Long> mine = new ArrayList<Long>();
+					try {
+						OutputStream out = s.getOutputStream();
+						InputStream in = s.getInputStream();
+						long end = System.currentTimeMillis() + duration;
+						while (System.currentTimeMillis() < end) {
+							long sent = System.nanoTime();
+							out.write(request);
+							for (int off = 0, read; off < response.length; off += read)
+								if ((read = in.read(response, off, response.length - off)) == -1)
+									throw new IOException("Terminus hung up");
+							mine.add(Long.valueOf(System.nanoTime() - sent));
+							Thread.sleep(5);
+						}
+						s.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					samples.addAll(mine);
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime() - start;
+		long bulkMb = (bulkBytes.get() - bulkBefore) >> 20;
+		stop.set(true);
+
+		List<Long> sorted = new ArrayList<Long>(samples);
+		Collections.sort(sorted);
+		System.out.println("readBudget=" + options.readBudget + " highWatermark=" + options.sendQueueHighWatermark
+			+ " rtts=" + sorted.size()
+			+ " p50=" + sorted.get(sorted.size() / 2).longValue() / 1000 + "us"
+			+ " p99=" + sorted.get(sorted.size() * 99 / 100).longValue() / 1000 + "us"
+			+ " max=" + sorted.get(sorted.size() - 1).longValue() / 1000 + "us"
+			+ " bulk=" + bulkMb * 1000000000 / elapsed + "MB/s");
+		bulk.close();
+		ladder.close();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,100 @@
+package in.kevinj.natladder.bench;
+
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
+import in.kevinj.natladder.common.util.CliHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams data through every pipe of a {@link LoopbackLadder} at once and
+ * reports throughput and how many write syscalls the event loops made per MB.
+ *
+ * Arguments: [pipes=16] [MB per pipe=4] [client write size=65536]
+ *   [ms before clients start reading=0] [event loops=1]
+ *
+ * Delaying the readers lets send queues back up, as they would behind a slow
+ * client; on loopback they otherwise rarely hold more than one buffer.
+ */
+public class RelayThroughput {
+	public static void main(String[] args) throws Exception {
+		int pipes = CliHelper.tryParse(args, 0, 16);
+		final int bytes = CliHelper.tryParse(args, 1, 4) * 1024 * 1024;
+		final int chunk = CliHelper.tryParse(args, 2, 64 * 1024);
+		final int readDelay = CliHelper.tryParse(args, 3, 0);
+		EventLoopOptions options = new EventLoopOptions();
+		options.eventLoops = CliHelper.tryParse(args, 4, options.eventLoops);
+
+		LoopbackLadder ladder = new LoopbackLadder(options);
+		final AtomicInteger verified = new AtomicInteger();
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < pipes; i++)
+			sockets.add(ladder.connect());
+
+		long writesBefore = LoopbackLadder.eventLoopIoCounter("syscw");
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < pipes; i++) {
+			final Socket s = sockets.get(i);
+			final byte[] data = new byte[bytes];
+			new Random(i).nextBytes(data);
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						OutputStream out = s.getOutputStream();
+						for (int off = 0; off < bytes; off += chunk)
+							out.write(data, off, Math.min(chunk, bytes - off));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] echoed = new byte[bytes];
+					int off = 0;
+					try {
+						Thread.sleep(readDelay);
+						InputStream in = s.getInputStream();
+						int read;
+						while (off < bytes && (read = in.read(echoed, off, bytes - off)) != -1)
+							off += read;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					if (Arrays.equals(data, echoed))
+						verified.incrementAndGet();
+				}
+			});
+			writer.start();
+			reader.start();
+			threads.add(writer);
+			threads.add(reader);
+		}
+		for (Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime() - start;
+		long writes = LoopbackLadder.eventLoopIoCounter("syscw") - writesBefore;
+
+		double mb = (double) pipes * bytes / (1024 * 1024);
+		System.out.println("pipes=" + pipes + " verified=" + verified.get()
+			+ " MB=" + Math.round(mb)
+			+ " MB/s=" + Math.round(mb * 1000000000 / elapsed)
+			+ " eventLoopWrites/MB=" + (writesBefore < 0 ? "n/a" : String.valueOf(Math.round(writes / mb))));
+		for (Socket s : sockets)
+			s.close();
+		ladder.close();
+		System.exit(verified.get() == pipes ? 0 : 1);
+	}
+}
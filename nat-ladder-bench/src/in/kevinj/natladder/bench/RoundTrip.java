@@ -0,0 +1,73 @@
+package in.kevinj.natladder.bench;
+
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
+import in.kevinj.natladder.common.util.CliHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One client sends 64 byte ping-pongs through a {@link LoopbackLadder} and
+ * reports the round trip latency, plus how much CPU the whole process used
+ * while it did. The first 2000 round trips only warm up.
+ *
+ * Arguments: [samples=20000] [think time us=0] [busy poll us=0]
+ */
+public class RoundTrip {
+	private static final int WARMUP = 2000;
+
+	public static void main(String[] args) throws Exception {
+		int samples = CliHelper.tryParse(args, 0, 20000);
+		long thinkNanos = TimeUnit.MICROSECONDS.toNanos(CliHelper.tryParse(args, 1, 0));
+		EventLoopOptions options = new EventLoopOptions();
+		options.busyPollMicros = CliHelper.tryParse(args, 2, options.busyPollMicros);
+
+		LoopbackLadder ladder = new LoopbackLadder(options);
+		Socket s = ladder.connect();
+		OutputStream out = s.getOutputStream();
+		InputStream in = s.getInputStream();
+		byte[] request = new byte[64], response = new byte[64];
+		long[] rtts = new long[samples];
+		long cpuStart = 0, wallStart = 0;
+		for (int i = -WARMUP; i < samples; i++) {
+			if (i == 0) {
+				cpuStart = processCpuTime();
+				wallStart = System.nanoTime();
+			}
+			long sent = System.nanoTime();
+			out.write(request);
+			for (int off = 0, read; off < response.length; off += read)
+				if ((read = in.read(response, off, response.length - off)) == -1)
+					throw new IOException("Terminus hung up");
+			if (i >= 0)
+				rtts[i] = System.nanoTime() - sent;
+			for (long until = System.nanoTime() + thinkNanos, left; (left = until - System.nanoTime()) > 0; )
+				LockSupport.parkNanos(left);
+		}
+		long cpu = processCpuTime() - cpuStart, wall = System.nanoTime() - wallStart;
+
+		Arrays.sort(rtts);
+		System.out.println("busyPoll=" + options.busyPollMicros + "us think=" + TimeUnit.NANOSECONDS.toMicros(thinkNanos) + "us"
+			+ " p50=" + rtts[samples / 2] / 1000 + "us"
+			+ " p99=" + rtts[samples * 99 / 100] / 1000 + "us"
+			+ " p999=" + rtts[samples * 999 / 1000] / 1000 + "us"
+			+ " cpu=" + (cpuStart < 0 ? "n/a" : (cpu * 100 / wall) + "%"));
+		s.close();
+		ladder.close();
+		System.exit(0);
+	}
+
+	private static long processCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+}
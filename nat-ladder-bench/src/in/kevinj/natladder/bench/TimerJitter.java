@@ -0,0 +1,55 @@
+package in.kevinj.natladder.bench;
+
+import in.kevinj.natladder.common.util.CliHelper;
+import in.kevinj.natladder.common.util.ScheduledHashedWheelExecutor;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules a batch of one-shot timeouts on a ScheduledHashedWheelExecutor and
+ * reports how late they ran. Negative lateness means a task ran early. The
+ * first batch only warms up.
+ *
+ * Arguments: [tick us=1000] [timeouts=3000] [min delay ms=30]
+ *   [max delay ms=60] [buckets=512]
+ */
+public class TimerJitter {
+	public static void main(String[] args) throws Exception {
+		long tickMicros = CliHelper.tryParse(args, 0, 1000);
+		int timeouts = CliHelper.tryParse(args, 1, 3000);
+		int minDelay = CliHelper.tryParse(args, 2, 30);
+		int maxDelay = CliHelper.tryParse(args, 3, 60);
+		int buckets = CliHelper.tryParse(args, 4, 512);
+
+		ScheduledHashedWheelExecutor timer = new ScheduledHashedWheelExecutor(buckets, tickMicros, TimeUnit.MICROSECONDS);
+		final long[] lateness = new long[timeouts];
+		Random random = new Random(7);
+		for (int round = 0; round < 2; round++) {
+			final CountDownLatch done = new CountDownLatch(timeouts);
+			for (int i = 0; i < timeouts; i++) {
+				final int index = i;
+				long delayMicros = 1000L * (minDelay + random.nextInt(maxDelay - minDelay + 1));
+				final long due = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(delayMicros);
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						lateness[index] = System.nanoTime() - due;
+						done.countDown();
+					}
+				}, delayMicros, TimeUnit.MICROSECONDS);
+			}
+			done.await();
+		}
+		timer.shutdownNow();
+
+		Arrays.sort(lateness);
+		System.out.println("tick=" + tickMicros + "us timeouts=" + timeouts + " lateness us:"
+			+ " min=" + lateness[0] / 1000
+			+ " p50=" + lateness[timeouts / 2] / 1000
+			+ " p99=" + lateness[timeouts * 99 / 100] / 1000
+			+ " max=" + lateness[timeouts - 1] / 1000);
+	}
+}
@@ -0,0 +1,62 @@
+package in.kevinj.natladder.common.netimpl;
+
+import in.kevinj.natladder.common.util.CliHelper;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how fast threads can take and return buffers. Each thread holds
+ * four buffers at a time, so every round trip goes through the magazines
+ * rather than handing one slice back and forth. Lives in the netimpl package
+ * because taking buffers isn't public.
+ *
+ * Arguments: [total take+return pairs=2000000] [buffer size=4096]
+ *   [thread counts=1,4,16]
+ */
+public class BufferCacheThroughput {
+	private static final int HELD = 4;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int ops = CliHelper.tryParse(args, 0, 2000000);
+		final int size = CliHelper.tryParse(args, 1, BufferCache.DEFAULT_BUFFER_SIZE);
+		for (String threadCount : CliHelper.tryGet(args, 2, "1,4,16").split(",")) {
+			int threads = Integer.parseInt(threadCount);
+			final int perThread = ops / threads / HELD;
+			// the last round is reported, the ones before warm up the JIT
+			double mops = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				final BufferCache cache = new BufferCache();
+				final CountDownLatch go = new CountDownLatch(1);
+				Thread[] workers = new Thread[threads];
+				for (int t = 0; t < threads; t++) {
+					workers[t] = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							PooledBuffer[] held = new PooledBuffer[HELD];
+							try {
+								go.await();
+							} catch (InterruptedException e) {
+								return;
+							}
+							for (int i = 0; i < perThread; i++) {
+								for (int j = 0; j < HELD; j++)
+									held[j] = cache.takePooledBuffer(size);
+								for (int j = 0; j < HELD; j++)
+									held[j].release();
+							}
+						}
+					});
+					workers[t].start();
+				}
+				long start = System.nanoTime();
+				go.countDown();
+				for (Thread t : workers)
+					t.join();
+				long elapsed = System.nanoTime() - start;
+				mops = (double) perThread * HELD * threads * 1000 / elapsed;
+			}
+			System.out.println("threads=" + threads + " size=" + size + " Mops/s=" + String.format("%.1f", mops));
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package in.kevinj.natladder.common.netimpl;
+
+import in.kevinj.natladder.common.util.CliHelper;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Runs many short-lived threads against one BufferCache, one after another,
+ * and shows whether the magazines they leave behind get reclaimed.
+ *
+ * Arguments: [threads=500] [buffers per thread=40]
+ */
+public class ThreadCacheReclaim {
+	public static void main(String[] args) throws Exception {
+		int threads = CliHelper.tryParse(args, 0, 500);
+		final int buffers = CliHelper.tryParse(args, 1, 40);
+		final BufferCache cache = new BufferCache();
+		for (int t = 0; t < threads; t++) {
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					PooledBuffer[] held = new PooledBuffer[buffers];
+					for (int i = 0; i < held.length; i++)
+						held[i] = cache.takePooledBuffer();
+					for (int i = 0; i < held.length; i++)
+						held[i].release();
+				}
+			});
+			th.start();
+			th.join();
+		}
+
+		// not exposed anywhere else, and it's the number we're interested in
+		Field threadCaches = BufferCache.class.getDeclaredField("threadCaches");
+		threadCaches.setAccessible(true);
+		List<?> tracked = (List<?>) threadCaches.get(cache);
+		System.out.println("before trim: threadCaches=" + tracked.size() + " " + cache);
+		cache.trim();
+		System.out.println("after trim:  threadCaches=" + tracked.size() + " " + cache);
+		cache.trim();
+		System.out.println("after trim:  threadCaches=" + tracked.size() + " " + cache);
+	}
+}
@@ -5,7 +5,14 @@ import in.kevinj.natladder.common.model.PacketHeaders;
 import in.kevinj.natladder.common.model.RemoteNode;
 import in.kevinj.natladder.common.model.RemoteRouter;
 import in.kevinj.natladder.common.model.SessionType;
-import in.kevinj.natladder.common.util.PacketParser;
+import in.kevinj.natladder.common.model.codec.AcceptedMessage;
+import in.kevinj.natladder.common.model.codec.FoundCutMessage;
+import in.kevinj.natladder.common.model.codec.IdentifyMessage;
+import in.kevinj.natladder.common.model.codec.MakePipeMessage;
+import in.kevinj.natladder.common.model.codec.PipeCreditMessage;
+import in.kevinj.natladder.common.model.codec.PipeFailMessage;
+import in.kevinj.natladder.common.model.codec.PipeMadeMessage;
+import in.kevinj.natladder.common.model.codec.RejectedMessage;
 import in.kevinj.natladder.common.util.Pair;
 
 import java.util.Map;
@@ -44,58 +51,55 @@ public class CentralRelayToBoundaryNode extends RemoteRouter<CentralRelayClientR
 		ExitNodeInfo exitNode = getLocalNode().getExitNode(identifier);
 		if (exitNode == null) {
 			// identifier did not map to any connected exit node
-			getClientSession().send(new byte[] {
-				PacketHeaders.REJECTED,
+			RejectedMessage.encode(getClientSession().packetBuilder(RejectedMessage.LENGTH, LocalRouter.CONTROL_CODE),
 				PacketHeaders.REJECTED_REASON_ID_NOT_IN_USE
-			}, LocalRouter.CONTROL_CODE);
+			).send();
 		} else if (!exitNode.password.equals(password)) {
 			// password did not match to exit node's provided password
-			getClientSession().send(new byte[] {
-				PacketHeaders.REJECTED,
+			RejectedMessage.encode(getClientSession().packetBuilder(RejectedMessage.LENGTH, LocalRouter.CONTROL_CODE),
 				PacketHeaders.REJECTED_REASON_WRONG_PASSWORD
-			}, LocalRouter.CONTROL_CODE);
+			).send();
 		} else {
 			setRemoteCode(getLocalNode().registerEntryNode(this, identifier, exitNode));
-			getClientSession().packetBuilder(Byte.SIZE / 8 + Short.SIZE / 8 * 2 + Integer.SIZE / 8, LocalRouter.CONTROL_CODE)
-				.writeByte(PacketHeaders.ACCEPTED)
-				.writeShort(getRemoteCode())		// give entry node their unique code that central relay just generated
-				.writeInt(exitNode.connectToPort)	// entry node will listen on the same port that exit node connects to locally
-				.writeShort(exitNode.nodeCode)		// give entry node the exit node's unique code for their relay table
-			.send();
+			AcceptedMessage.encode(getClientSession().packetBuilder(AcceptedMessage.LENGTH + AcceptedMessage.OPTIONAL_LENGTH, LocalRouter.CONTROL_CODE),
+				getRemoteCode(),		// give entry node their unique code that central relay just generated
+				exitNode.connectToPort,	// entry node will listen on the same port that exit node connects to locally
+				exitNode.nodeCode		// give entry node the exit node's unique code for their relay table
+			).send();
 			LOG.log(Level.INFO, "Connection with {0} ({1}) at {2} linking with {3}", new Object[] { getRemoteTypeString(), getRemoteCode(), getClientSession().getAddress(), identifier });
 		}
 	}
 
 	private void exitNodeConnected(String identifier, String password, int connectToPort) {
 		if (getLocalNode().getExitNode(identifier) != null) {
-			getClientSession().send(new byte[] {
-				PacketHeaders.REJECTED,
+			RejectedMessage.encode(getClientSession().packetBuilder(RejectedMessage.LENGTH, LocalRouter.CONTROL_CODE),
 				PacketHeaders.REJECTED_REASON_ID_IN_USE
-			}, LocalRouter.CONTROL_CODE);
+			).send();
 		} else {
 			setRemoteCode(getLocalNode().registerExitNode(this, identifier, password, connectToPort));
-			getClientSession().packetBuilder(Byte.SIZE / 8 + Short.SIZE / 8, LocalRouter.CONTROL_CODE)
-				.writeByte(PacketHeaders.ACCEPTED)
-				.writeShort(getRemoteCode())
-			.send();
+			AcceptedMessage.encode(getClientSession().packetBuilder(AcceptedMessage.LENGTH, LocalRouter.CONTROL_CODE),
+				getRemoteCode()
+			).send();
 			LOG.log(Level.INFO, "Connection with {0} ({1}) at {2} registering as {3}", new Object[] { getRemoteTypeString(), getRemoteCode(), getClientSession().getAddress(), identifier });
 		}
 	}
 
 	@Override
-	protected void processIdentify(PacketParser packet) {
-		setSessionType(SessionType.valueOf(packet.readByte()));
+	protected void processIdentify(IdentifyMessage message) {
+		setSessionType(SessionType.valueOf(message.sessionType()));
 		switch (getSessionType()) {
 			case UPWARDS_RELAY: {
-				String identifier = packet.readString().toLowerCase();
-				String password = packet.readString();
+				String identifier = message.identifier().toLowerCase();
+				String password = message.password();
 				entryNodeConnected(identifier, password);
 				break;
 			}
 			case DOWNWARDS_RELAY: {
-				String identifier = packet.readString().toLowerCase();
-				String password = packet.readString();
-				int connectToPort = packet.readInt();
+				if (!message.hasOptionalFields())
+					throw new IllegalArgumentException("Exit node did not send its connectToPort");
+				String identifier = message.identifier().toLowerCase();
+				String password = message.password();
+				int connectToPort = message.connectToPort();
 				exitNodeConnected(identifier, password, connectToPort);
 				break;
 			}
@@ -105,32 +109,37 @@ public class CentralRelayToBoundaryNode extends RemoteRouter<CentralRelayClientR
 	}
 
 	@Override
-	protected void processAccepted(PacketParser packet) {
+	protected void processAccepted(AcceptedMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processRejected(PacketParser packet) {
+	protected void processRejected(RejectedMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected Pair<Short, short[]> processFoundCut(PacketParser packet) {
+	protected Pair<Short, short[]> processFoundCut(FoundCutMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processMakePipe(PacketParser packet) {
+	protected void processMakePipe(MakePipeMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processPipeMade(PacketParser packet) {
+	protected void processPipeMade(PipeMadeMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processPipeFail(PacketParser packet) {
+	protected void processPipeFail(PipeFailMessage message) {
+		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
+	}
+
+	@Override
+	protected void processPipeCredit(PipeCreditMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
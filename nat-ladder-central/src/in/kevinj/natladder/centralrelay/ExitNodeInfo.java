@@ -1,7 +1,8 @@
 package in.kevinj.natladder.centralrelay;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ExitNodeInfo {
 	public final String identifier, password;
@@ -15,6 +16,7 @@ public class ExitNodeInfo {
 		this.connectToPort = connectToPort;
 		this.nodeCode = nodeCode;
 
-		connectedEntryNodes = new HashSet<Short>();
+		// entry nodes on different event loop threads may connect and disconnect concurrently
+		connectedEntryNodes = Collections.newSetFromMap(new ConcurrentHashMap<Short, Boolean>());
 	}
 }
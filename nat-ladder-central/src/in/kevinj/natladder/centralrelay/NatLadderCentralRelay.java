@@ -2,6 +2,7 @@ package in.kevinj.natladder.centralrelay;
 
 import in.kevinj.natladder.common.netimpl.ClientManager;
 import in.kevinj.natladder.common.netimpl.ClientManagerNio;
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
 import in.kevinj.natladder.common.util.CliHelper;
 
 import java.util.Collections;
@@ -13,9 +14,12 @@ public class NatLadderCentralRelay {
 	public static void main(String[] args) {
 		String centralRelayHost = CliHelper.tryGet(args, 0, CENTRAL_RELAY_HOST);
 		int centralRelayPort = CliHelper.tryParse(args, 1, CENTRAL_RELAY_PORT);
+		EventLoopOptions options = new EventLoopOptions();
+		options.eventLoops = CliHelper.tryParse(args, 2, options.eventLoops);
+		options.acceptorThread = Boolean.parseBoolean(CliHelper.tryGet(args, 3, String.valueOf(options.acceptorThread)));
 
 		CentralRelayClientRegistry state = new CentralRelayClientRegistry();
-		ClientManager<CentralRelayClientRegistry> eventLoop = new ClientManagerNio<CentralRelayClientRegistry>(state);
+		ClientManager<CentralRelayClientRegistry> eventLoop = new ClientManagerNio<CentralRelayClientRegistry>(state, options);
 		state.setClientManager(eventLoop);
 		eventLoop.listen(state.internalNodeFactory(), centralRelayHost, centralRelayPort, Collections.<String, Object>emptyMap());
 	}
@@ -4,6 +4,7 @@ import in.kevinj.natladder.common.model.ClientType;
 import in.kevinj.natladder.common.model.LocalRouter;
 import in.kevinj.natladder.common.model.RemoteNode;
 import in.kevinj.natladder.common.model.RemoteNode.RemoteNodeFactory;
+import in.kevinj.natladder.common.model.RouterResources;
 import in.kevinj.natladder.common.model.SessionType;
 
 import java.util.concurrent.ConcurrentHashMap;
@@ -14,7 +15,11 @@ public class EntryNodeClientRegistry extends LocalRouter<EntryNodeClientRegistry
 	private final ConcurrentMap<Short, short[]> relayChains;
 
 	public EntryNodeClientRegistry(ClientType localType) {
-		super(localType);
+		this(localType, new RouterResources());
+	}
+
+	public EntryNodeClientRegistry(ClientType localType, RouterResources resources) {
+		super(localType, resources);
 		relayChains = new ConcurrentHashMap<Short, short[]>();
 	}
 
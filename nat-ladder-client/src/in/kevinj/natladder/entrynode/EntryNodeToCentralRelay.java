@@ -5,7 +5,13 @@ import in.kevinj.natladder.common.model.PacketHeaders;
 import in.kevinj.natladder.common.model.RemoteNode;
 import in.kevinj.natladder.common.model.RemoteRouter;
 import in.kevinj.natladder.common.model.SessionType;
-import in.kevinj.natladder.common.util.PacketParser;
+import in.kevinj.natladder.common.model.codec.AcceptedMessage;
+import in.kevinj.natladder.common.model.codec.FoundCutMessage;
+import in.kevinj.natladder.common.model.codec.IdentifyMessage;
+import in.kevinj.natladder.common.model.codec.MakePipeMessage;
+import in.kevinj.natladder.common.model.codec.PipeFailMessage;
+import in.kevinj.natladder.common.model.codec.PipeMadeMessage;
+import in.kevinj.natladder.common.model.codec.RejectedMessage;
 import in.kevinj.natladder.common.util.Pair;
 
 import java.util.Collections;
@@ -23,13 +29,12 @@ public class EntryNodeToCentralRelay extends RemoteRouter<EntryNodeClientRegistr
 		assert getSessionType() != null : getSessionType();
 
 		// notify central relay that we are an ENTRY_NODE
-		getClientSession().packetBuilder(LocalRouter.CONTROL_CODE)
-			.writeByte(PacketHeaders.IDENTIFY)
+		IdentifyMessage.encode(getClientSession().packetBuilder(LocalRouter.CONTROL_CODE),
 			// relative to central relay, entry nodes are upstream
-			.writeByte(getSessionType().invert().byteValue())
-			.writeString((String) properties.get("identifier"))
-			.writeString((String) properties.get("password"))
-		.send();
+			getSessionType().invert().byteValue(),
+			(String) properties.get("identifier"),
+			(String) properties.get("password")
+		).send();
 	}
 
 	@Override
@@ -45,27 +50,28 @@ public class EntryNodeToCentralRelay extends RemoteRouter<EntryNodeClientRegistr
 			// relayChain can actually be null if connection to exit node has not yet established the pipe
 			// (maybe because the other terminus is timing out on us).
 			short exitNodeCode = getLocalNode().getExitNodeCode();
-			getClientSession().packetBuilder(Byte.SIZE / 8 + Short.SIZE / 8 * 2, exitNodeCode, LocalRouter.CONTROL_CODE)
-				.writeByte(PacketHeaders.PIPE_FAIL)
-				.writeShort(getLocalNode().getLocalCode())
-				.writeShort(ourTerminus)
-			.send();
+			PipeFailMessage.encode(getClientSession().packetBuilder(PipeFailMessage.LENGTH + PipeFailMessage.OPTIONAL_LENGTH, exitNodeCode, LocalRouter.CONTROL_CODE),
+				getLocalNode().getLocalCode(),
+				ourTerminus
+			).send();
 		}
 
 		return relayChain;
 	}
 
 	@Override
-	protected void processIdentify(PacketParser packet) {
+	protected void processIdentify(IdentifyMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processAccepted(PacketParser packet) {
-		super.processAccepted(packet);
+	protected void processAccepted(AcceptedMessage message) {
+		if (!message.hasOptionalFields())
+			throw new IllegalArgumentException("Central relay did not send our exit node");
+		super.processAccepted(message);
 
-		int portNumber = packet.readInt();
-		short exitNodeCode = packet.readShort();
+		int portNumber = message.connectToPort();
+		short exitNodeCode = message.exitNodeCode();
 		getLocalNode().getClientManager().listen(getLocalNode().externalNodeFactory(),
 			"0.0.0.0",
 			portNumber,
@@ -75,8 +81,8 @@ public class EntryNodeToCentralRelay extends RemoteRouter<EntryNodeClientRegistr
 	}
 
 	@Override
-	protected void processRejected(PacketParser packet) {
-		byte rejectedReason = packet.readByte();
+	protected void processRejected(RejectedMessage message) {
+		byte rejectedReason = message.reason();
 		switch (rejectedReason) {
 			case PacketHeaders.REJECTED_REASON_ID_NOT_IN_USE:
 			case PacketHeaders.REJECTED_REASON_WRONG_PASSWORD:
@@ -90,14 +96,12 @@ public class EntryNodeToCentralRelay extends RemoteRouter<EntryNodeClientRegistr
 	}
 
 	@Override
-	protected Pair<Short, short[]> processFoundCut(PacketParser packet) {
-		byte foundCutType = packet.readByte();
+	protected Pair<Short, short[]> processFoundCut(FoundCutMessage message) {
+		byte foundCutType = message.cutType();
 		switch (foundCutType) {
 			case PacketHeaders.FOUND_CUT_TERMINUS:
-				return super.processFoundCut(packet);
+				return super.processFoundCut(message);
 			case PacketHeaders.FOUND_CUT_NODE: {
-				/*short otherNode = */packet.readShort();
-
 				// lost connection to exit node. just shut ourselves down.
 				getLocalNode().getClientManager().close("Lost connection to exit node", null);
 				return null;
@@ -108,19 +112,22 @@ public class EntryNodeToCentralRelay extends RemoteRouter<EntryNodeClientRegistr
 	}
 
 	@Override
-	protected void processMakePipe(PacketParser packet) {
+	protected void processMakePipe(MakePipeMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processPipeMade(PacketParser packet) {
-		short ourTerminus = packet.readShort();
-		short exitNodeCode = packet.readShort();
-		short theirTerminus = packet.readShort();
+	protected void processPipeMade(PipeMadeMessage message) {
+		short ourTerminus = message.entryTerminus();
+		short exitNodeCode = message.exitNodeCode();
+		short theirTerminus = message.exitTerminus();
 
 		getLocalNode().setRelayChain(ourTerminus, exitNodeCode, theirTerminus);
 		RemoteNode<EntryNodeClientRegistry> terminus = getNextNode(ourTerminus);
 		if (terminus != null) {
+			// exit nodes that don't know about credit don't echo any capabilities
+			if (message.hasOptionalFields() && (message.capabilities() & PacketHeaders.PIPE_CAPABILITY_CREDIT) != 0)
+				terminus.getClientSession().enablePipeCredit();
 			terminus.flushRaw();
 			LOG.log(Level.INFO, "Connection with {0} ({1}) at {2} piped through", new Object[] { terminus.getRemoteTypeString(), terminus.getRemoteCode(), terminus.getClientSession().getAddress() });
 		}
@@ -129,8 +136,8 @@ public class EntryNodeToCentralRelay extends RemoteRouter<EntryNodeClientRegistr
 	}
 
 	@Override
-	protected void processPipeFail(PacketParser packet) {
-		short ourTerminus = packet.readShort();
+	protected void processPipeFail(PipeFailMessage message) {
+		short ourTerminus = message.code();
 		RemoteNode<EntryNodeClientRegistry> terminus = getNextNode(ourTerminus);
 		if (terminus != null)
 			terminus.quietClose("Lost connection on source node");
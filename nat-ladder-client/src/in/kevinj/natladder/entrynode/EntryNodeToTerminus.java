@@ -3,8 +3,9 @@ package in.kevinj.natladder.entrynode;
 import in.kevinj.natladder.common.model.LocalRouter;
 import in.kevinj.natladder.common.model.PacketHeaders;
 import in.kevinj.natladder.common.model.RemoteNode;
+import in.kevinj.natladder.common.model.codec.MakePipeMessage;
+import in.kevinj.natladder.common.netimpl.PooledBuffer;
 
-import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
@@ -12,12 +13,13 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class EntryNodeToTerminus extends RemoteNode<EntryNodeClientRegistry> {
-	private final Queue<ByteBuffer> queuedRaws;
+	private final Queue<PooledBuffer> queuedRaws;
 	private ScheduledFuture<?> queuedRawsExpire;
+	private volatile boolean piped;
 
 	public EntryNodeToTerminus(EntryNodeClientRegistry parentModel) {
 		super(parentModel);
-		queuedRaws = new LinkedList<ByteBuffer>();
+		queuedRaws = new LinkedList<PooledBuffer>();
 	}
 
 	@Override
@@ -28,19 +30,27 @@ public class EntryNodeToTerminus extends RemoteNode<EntryNodeClientRegistry> {
 	@Override
 	public void onConnected(Map<String, Object> properties) {
 		short exitNodeCode = ((Short) properties.get("exitNodeCode")).shortValue();
-		getNextNode().getClientSession().packetBuilder(Byte.SIZE / 8 + Short.SIZE / 8 * 2, exitNodeCode, LocalRouter.CONTROL_CODE)
-			.writeByte(PacketHeaders.MAKE_PIPE)
-			.writeShort(getLocalNode().getLocalCode())
-			.writeShort(getRemoteCode())
-		.send();
+		MakePipeMessage.encode(getNextNode().getClientSession().packetBuilder(MakePipeMessage.LENGTH + MakePipeMessage.OPTIONAL_LENGTH, exitNodeCode, LocalRouter.CONTROL_CODE),
+			getLocalNode().getLocalCode(),
+			getRemoteCode(),
+			PacketHeaders.PIPE_CAPABILITY_CREDIT
+		).send();
 	}
 
 	@Override
-	public void deferRaw(ByteBuffer readBuffer) {
+	public boolean isDeferringRaw() {
+		return !piped;
+	}
+
+	@Override
+	public void deferRaw(PooledBuffer readBuffer) {
 		synchronized (queuedRaws) {
-			queuedRaws.add(readBuffer);
-			if (queuedRawsExpire == null) {
-				queuedRawsExpire = getLocalNode().getWheelTimer().schedule(new Runnable() {
+			queuedRaws.add(readBuffer.retain());
+			if (piped) {
+				// flushRaw() beat us to the lock. nothing is left to overtake.
+				getClientSession().flushQueuedRaw(queuedRaws);
+			} else if (queuedRawsExpire == null) {
+				queuedRawsExpire = getClientSession().getTimer().schedule(new Runnable() {
 					@Override
 					public void run() {
 						queuedRawsExpire = null;
@@ -61,6 +71,8 @@ public class EntryNodeToTerminus extends RemoteNode<EntryNodeClientRegistry> {
 
 			if (!queuedRaws.isEmpty())
 				getClientSession().flushQueuedRaw(queuedRaws);
+			// only stop deferring once everything queued before the pipe was made is sent
+			piped = getLocalNode().getRelayChain(getRemoteCode()) != null;
 		}
 	}
 
@@ -3,6 +3,7 @@ package in.kevinj.natladder.entrynode;
 import in.kevinj.natladder.common.model.ClientType;
 import in.kevinj.natladder.common.netimpl.ClientManager;
 import in.kevinj.natladder.common.netimpl.ClientManagerNio;
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
 import in.kevinj.natladder.common.util.CliHelper;
 
 import java.util.Collections;
@@ -18,13 +19,16 @@ public class NatLadderEntryNode {
 		int centralRelayPort = CliHelper.tryParse(args, 1, CENTRAL_RELAY_PORT);
 		String identifier = CliHelper.tryGet(args, 2, "test");
 		String password = CliHelper.tryGet(args, 3, "test");
+		EventLoopOptions options = new EventLoopOptions();
+		options.eventLoops = CliHelper.tryParse(args, 4, options.eventLoops);
+		options.acceptorThread = Boolean.parseBoolean(CliHelper.tryGet(args, 5, String.valueOf(options.acceptorThread)));
 
 		Map<String, Object> properties = new HashMap<String, Object>();
 		properties.put("identifier", identifier);
 		properties.put("password", password);
 
 		EntryNodeClientRegistry state = new EntryNodeClientRegistry(ClientType.ENTRY_NODE);
-		ClientManager<EntryNodeClientRegistry> eventLoop = new ClientManagerNio<EntryNodeClientRegistry>(state);
+		ClientManager<EntryNodeClientRegistry> eventLoop = new ClientManagerNio<EntryNodeClientRegistry>(state, options);
 		state.setClientManager(eventLoop);
 		eventLoop.connect(state.internalNodeFactory(), centralRelayHost, centralRelayPort, Collections.unmodifiableMap(properties));
 	}
@@ -2,10 +2,11 @@ package in.kevinj.natladder.exitnode;
 
 import in.kevinj.natladder.common.model.ClientType;
 import in.kevinj.natladder.common.model.LocalRouter;
-import in.kevinj.natladder.common.model.PacketHeaders;
 import in.kevinj.natladder.common.model.RemoteNode;
 import in.kevinj.natladder.common.model.RemoteNode.RemoteNodeFactory;
+import in.kevinj.natladder.common.model.RouterResources;
 import in.kevinj.natladder.common.model.SessionType;
+import in.kevinj.natladder.common.model.codec.PipeFailMessage;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -37,7 +38,11 @@ public class ExitNodeClientRegistry extends LocalRouter<ExitNodeClientRegistry>
 	private final Map<Short, short[]> relayChains;
 
 	public ExitNodeClientRegistry(ClientType localType, String terminusHost, int terminusPort) {
-		super(localType);
+		this(localType, terminusHost, terminusPort, new RouterResources());
+	}
+
+	public ExitNodeClientRegistry(ClientType localType, String terminusHost, int terminusPort, RouterResources resources) {
+		super(localType, resources);
 		lock = new ReentrantReadWriteLock();
 		linkedEntryNodes = new HashMap<Short, EntryNodeInfo>();
 		relayChains = new HashMap<Short, short[]>();
@@ -329,10 +334,9 @@ public class ExitNodeClientRegistry extends LocalRouter<ExitNodeClientRegistry>
 				LOG.log(Level.WARNING, "Failed to establish connection with " + RemoteNode.getRemoteTypeString(sessionType, getRemoteType(sessionType)), ex);
 				short[] entryNodeRelayChain = (short[]) properties.get("entryNodeRelayChain");
 				if (linkFailedOurEnd(entryNodeRelayChain)) {
-					getCentralRelayLink().getClientSession().packetBuilder(Byte.SIZE / 8 + Short.SIZE / 8, entryNodeRelayChain[0], LocalRouter.CONTROL_CODE)
-						.writeByte(PacketHeaders.PIPE_FAIL)
-						.writeShort(entryNodeRelayChain[1])
-					.send();
+					PipeFailMessage.encode(getCentralRelayLink().getClientSession().packetBuilder(PipeFailMessage.LENGTH, entryNodeRelayChain[0], LocalRouter.CONTROL_CODE),
+						entryNodeRelayChain[1]
+					).send();
 				}
 				break;
 			}
@@ -5,10 +5,15 @@ import in.kevinj.natladder.common.model.PacketHeaders;
 import in.kevinj.natladder.common.model.RemoteNode;
 import in.kevinj.natladder.common.model.RemoteRouter;
 import in.kevinj.natladder.common.model.SessionType;
-import in.kevinj.natladder.common.util.PacketParser;
+import in.kevinj.natladder.common.model.codec.FoundCutMessage;
+import in.kevinj.natladder.common.model.codec.IdentifyMessage;
+import in.kevinj.natladder.common.model.codec.MakePipeMessage;
+import in.kevinj.natladder.common.model.codec.PipeFailMessage;
+import in.kevinj.natladder.common.model.codec.PipeMadeMessage;
+import in.kevinj.natladder.common.model.codec.RejectedMessage;
 import in.kevinj.natladder.common.util.Pair;
 
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 
@@ -23,14 +28,13 @@ public class ExitNodeToCentralRelay extends RemoteRouter<ExitNodeClientRegistry>
 		assert getSessionType() != null : getSessionType();
 
 		// notify central relay that we are an EXIT_NODE
-		getClientSession().packetBuilder(LocalRouter.CONTROL_CODE)
-			.writeByte(PacketHeaders.IDENTIFY)
+		IdentifyMessage.encode(getClientSession().packetBuilder(LocalRouter.CONTROL_CODE),
 			// relative to central relay, exit nodes are downstream
-			.writeByte(getSessionType().invert().byteValue())
-			.writeString((String) properties.get("identifier"))
-			.writeString((String) properties.get("password"))
-			.writeInt(((Integer) properties.get("connectToPort")).intValue())
-		.send();
+			getSessionType().invert().byteValue(),
+			(String) properties.get("identifier"),
+			(String) properties.get("password"),
+			((Integer) properties.get("connectToPort")).intValue()
+		).send();
 	}
 
 	@Override
@@ -51,13 +55,13 @@ public class ExitNodeToCentralRelay extends RemoteRouter<ExitNodeClientRegistry>
 	}
 
 	@Override
-	protected void processIdentify(PacketParser packet) {
+	protected void processIdentify(IdentifyMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processRejected(PacketParser packet) {
-		byte rejectedReason = packet.readByte();
+	protected void processRejected(RejectedMessage message) {
+		byte rejectedReason = message.reason();
 		switch (rejectedReason) {
 			case PacketHeaders.REJECTED_REASON_ID_IN_USE:
 				// FIXME: implement command line interaction telling user to re-enter
@@ -70,16 +74,16 @@ public class ExitNodeToCentralRelay extends RemoteRouter<ExitNodeClientRegistry>
 	}
 
 	@Override
-	protected Pair<Short, short[]> processFoundCut(PacketParser packet) {
-		byte foundCutType = packet.readByte();
+	protected Pair<Short, short[]> processFoundCut(FoundCutMessage message) {
+		byte foundCutType = message.cutType();
 		switch (foundCutType) {
 			case PacketHeaders.FOUND_CUT_TERMINUS: {
-				Pair<Short, short[]> info = super.processFoundCut(packet);
+				Pair<Short, short[]> info = super.processFoundCut(message);
 				getLocalNode().linkLost(info.left.shortValue(), info.right);
 				return info;
 			}
 			case PacketHeaders.FOUND_CUT_NODE: {
-				short otherNode = packet.readShort();
+				short otherNode = message.nodeCode();
 				getLocalNode().linksLost(this, otherNode);
 				return null;
 			}
@@ -89,26 +93,33 @@ public class ExitNodeToCentralRelay extends RemoteRouter<ExitNodeClientRegistry>
 	}
 
 	@Override
-	protected void processMakePipe(PacketParser packet) {
-		short entryNodeCode = packet.readShort();
-		short theirTerminus = packet.readShort();
+	protected void processMakePipe(MakePipeMessage message) {
+		short entryNodeCode = message.entryNodeCode();
+		short theirTerminus = message.entryTerminus();
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("entryNodeRelayChain", new short[] { entryNodeCode, theirTerminus });
+		// entry nodes that don't know about capabilities send none
+		if (message.hasOptionalFields())
+			properties.put("entryNodeCapabilities", Byte.valueOf(message.capabilities()));
 		getLocalNode().linkAttempt(entryNodeCode, theirTerminus);
 		getLocalNode().getClientManager().connect(getLocalNode().externalNodeFactory(),
 			getLocalNode().getTerminusHost(),
 			getLocalNode().getTerminusPort(),
-			Collections.<String, Object>singletonMap("entryNodeRelayChain", new short[] { entryNodeCode, theirTerminus })
+			properties
 		);
 	}
 
 	@Override
-	protected void processPipeMade(PacketParser packet) {
+	protected void processPipeMade(PipeMadeMessage message) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet");
 	}
 
 	@Override
-	protected void processPipeFail(PacketParser packet) {
-		short entryNodeCode = packet.readShort();
-		short theirTerminus = packet.readShort();
+	protected void processPipeFail(PipeFailMessage message) {
+		if (!message.hasOptionalFields())
+			throw new IllegalArgumentException("Entry node did not send its terminus");
+		short entryNodeCode = message.code();
+		short theirTerminus = message.entryTerminus();
 
 		if (!getLocalNode().linkFailedTheirEnd(this, entryNodeCode, theirTerminus))
 			throw new IllegalStateException("Cut a non-existent connection (remote node code: " + entryNodeCode + "," + theirTerminus + ")");
@@ -3,8 +3,9 @@ package in.kevinj.natladder.exitnode;
 import in.kevinj.natladder.common.model.LocalRouter;
 import in.kevinj.natladder.common.model.PacketHeaders;
 import in.kevinj.natladder.common.model.RemoteNode;
+import in.kevinj.natladder.common.model.codec.PipeMadeMessage;
+import in.kevinj.natladder.common.netimpl.PooledBuffer;
 
-import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.logging.Level;
 
@@ -21,13 +22,25 @@ public class ExitNodeToTerminus extends RemoteNode<ExitNodeClientRegistry> {
 	@Override
 	public void onConnected(Map<String, Object> properties) {
 		short[] entryNodeRelayChain = (short[]) properties.get("entryNodeRelayChain");
+		Byte entryNodeCapabilities = (Byte) properties.get("entryNodeCapabilities");
+		// before the pipe is made, so that no raw bytes get through uncounted
+		byte capabilities = (byte) (entryNodeCapabilities == null ? 0 : entryNodeCapabilities.byteValue() & PacketHeaders.PIPE_CAPABILITY_CREDIT);
+		if ((capabilities & PacketHeaders.PIPE_CAPABILITY_CREDIT) != 0)
+			getClientSession().enablePipeCredit();
 		if (getLocalNode().linkEstablished(getRemoteCode(), entryNodeRelayChain)) {
-			getNextNode().getClientSession().packetBuilder(Byte.SIZE / 8 + Short.SIZE / 8 * 3, entryNodeRelayChain[0], LocalRouter.CONTROL_CODE)
-				.writeByte(PacketHeaders.PIPE_MADE)
-				.writeShort(entryNodeRelayChain[1])
-				.writeShort(getLocalNode().getLocalCode())
-				.writeShort(getRemoteCode())
-			.send();
+			if (entryNodeCapabilities == null)
+				PipeMadeMessage.encode(getNextNode().getClientSession().packetBuilder(PipeMadeMessage.LENGTH, entryNodeRelayChain[0], LocalRouter.CONTROL_CODE),
+					entryNodeRelayChain[1],
+					getLocalNode().getLocalCode(),
+					getRemoteCode()
+				).send();
+			else
+				PipeMadeMessage.encode(getNextNode().getClientSession().packetBuilder(PipeMadeMessage.LENGTH + PipeMadeMessage.OPTIONAL_LENGTH, entryNodeRelayChain[0], LocalRouter.CONTROL_CODE),
+					entryNodeRelayChain[1],
+					getLocalNode().getLocalCode(),
+					getRemoteCode(),
+					capabilities
+				).send();
 			LOG.log(Level.INFO, "Connection with {0} ({1}) at {2} piped through", new Object[] { getRemoteTypeString(), getRemoteCode(), getClientSession().getAddress() });
 		} else {
 			// if other end is already disconnected, disconnect this end
@@ -36,7 +49,7 @@ public class ExitNodeToTerminus extends RemoteNode<ExitNodeClientRegistry> {
 	}
 
 	@Override
-	public void deferRaw(ByteBuffer readBuffer) {
+	public void deferRaw(PooledBuffer readBuffer) {
 		throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support queueing raw messages");
 	}
 
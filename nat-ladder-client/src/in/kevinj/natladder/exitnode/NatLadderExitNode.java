@@ -3,6 +3,7 @@ package in.kevinj.natladder.exitnode;
 import in.kevinj.natladder.common.model.ClientType;
 import in.kevinj.natladder.common.netimpl.ClientManager;
 import in.kevinj.natladder.common.netimpl.ClientManagerNio;
+import in.kevinj.natladder.common.netimpl.EventLoopOptions;
 import in.kevinj.natladder.common.util.CliHelper;
 
 import java.util.Collections;
@@ -22,6 +23,9 @@ public class NatLadderExitNode {
 		String password = CliHelper.tryGet(args, 3, "test");
 		String terminusHost = CliHelper.tryGet(args, 4, TERMINUS_HOST);
 		int terminusPort = CliHelper.tryParse(args, 5, TERMINUS_PORT);
+		EventLoopOptions options = new EventLoopOptions();
+		options.eventLoops = CliHelper.tryParse(args, 6, options.eventLoops);
+		options.acceptorThread = Boolean.parseBoolean(CliHelper.tryGet(args, 7, String.valueOf(options.acceptorThread)));
 
 		Map<String, Object> properties = new HashMap<String, Object>();
 		properties.put("identifier", identifier);
@@ -29,7 +33,7 @@ public class NatLadderExitNode {
 		properties.put("connectToPort", Integer.valueOf(terminusPort));
 
 		ExitNodeClientRegistry state = new ExitNodeClientRegistry(ClientType.EXIT_NODE, terminusHost, terminusPort);
-		ClientManager<ExitNodeClientRegistry> eventLoop = new ClientManagerNio<ExitNodeClientRegistry>(state);
+		ClientManager<ExitNodeClientRegistry> eventLoop = new ClientManagerNio<ExitNodeClientRegistry>(state, options);
 		state.setClientManager(eventLoop);
 		eventLoop.connect(state.internalNodeFactory(), centralRelayHost, centralRelayPort, Collections.unmodifiableMap(properties));
 	}
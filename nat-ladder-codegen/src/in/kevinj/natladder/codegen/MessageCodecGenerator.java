@@ -0,0 +1,310 @@
+package in.kevinj.natladder.codegen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a flyweight codec class in in.kevinj.natladder.common.model.codec
+ * for every message in messages.schema.
+ * Usage: MessageCodecGenerator <schema file> <source root>
+ */
+public class MessageCodecGenerator {
+	private static final Charset utf8 = Charset.forName("UTF-8");
+	private static final String PACKAGE = "in.kevinj.natladder.common.model.codec";
+
+	private enum Type {
+		BYTE("byte", "writeByte", "get", Byte.SIZE / 8),
+		SHORT("short", "writeShort", "getShort", Short.SIZE / 8),
+		INT("int", "writeInt", "getInt", Integer.SIZE / 8),
+		// length prefix only
+		STRING("String", "writeString", null, Short.SIZE / 8);
+
+		public final String javaType, writer, getter;
+		public final int size;
+
+		private Type(String javaType, String writer, String getter, int size) {
+			this.javaType = javaType;
+			this.writer = writer;
+			this.getter = getter;
+			this.size = size;
+		}
+	}
+
+	private static class Field {
+		public final Type type;
+		public final String name;
+		public final List<String> comments;
+
+		public Field(Type type, String name, List<String> comments) {
+			this.type = type;
+			this.name = name;
+			this.comments = comments;
+		}
+	}
+
+	private static class Message {
+		public final String name, op;
+		public final List<String> comments;
+		public final List<Field> required, optional;
+		public boolean inOptional;
+
+		public Message(String name, String op, List<String> comments) {
+			this.name = name;
+			this.op = op;
+			this.comments = comments;
+			required = new ArrayList<Field>();
+			optional = new ArrayList<Field>();
+		}
+	}
+
+	private static List<Message> parse(File schema) throws IOException {
+		List<Message> messages = new ArrayList<Message>();
+		List<String> comments = new ArrayList<String>();
+		Message current = null;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(schema), utf8));
+		try {
+			String line;
+			for (int lineNo = 1; (line = in.readLine()) != null; lineNo++) {
+				String trimmed = line.trim();
+				if (trimmed.isEmpty()) {
+					comments = new ArrayList<String>();
+					continue;
+				}
+				if (trimmed.startsWith("#")) {
+					comments.add(trimmed.substring(1).trim());
+					continue;
+				}
+
+				String[] tokens = trimmed.split("\\s+");
+				if (tokens[0].equals("message") && tokens.length == 3) {
+					current = new Message(tokens[1], tokens[2], comments);
+					messages.add(current);
+				} else if (current == null) {
+					throw new IOException(schema + ":" + lineNo + ": field outside of a message");
+				} else if (tokens[0].equals("optional") && tokens.length == 1) {
+					if (current.inOptional)
+						throw new IOException(schema + ":" + lineNo + ": " + current.name + " already has optional fields");
+					current.inOptional = true;
+				} else if (tokens.length == 2) {
+					Type type;
+					try {
+						type = Type.valueOf(tokens[0].toUpperCase());
+					} catch (IllegalArgumentException e) {
+						throw new IOException(schema + ":" + lineNo + ": unknown type " + tokens[0]);
+					}
+					if (current.inOptional && type == Type.STRING)
+						throw new IOException(schema + ":" + lineNo + ": optional fields must have a fixed size");
+					(current.inOptional ? current.optional : current.required).add(new Field(type, tokens[1], comments));
+				} else {
+					throw new IOException(schema + ":" + lineNo + ": can't parse \"" + trimmed + "\"");
+				}
+				comments = new ArrayList<String>();
+			}
+		} finally {
+			in.close();
+		}
+		return messages;
+	}
+
+	private static void describe(StringBuilder out, Field f) {
+		out.append(" * ").append(f.type.javaType).append(' ').append(f.name);
+		for (String c : f.comments)
+			out.append(" - ").append(c);
+		out.append('\n');
+	}
+
+	private static int fixedLength(List<Field> fields) {
+		int length = 0;
+		for (Field f : fields)
+			length += f.type.size;
+		return length;
+	}
+
+	private static void emitEncode(StringBuilder out, Message m, boolean withOptional) {
+		List<Field> fields = new ArrayList<Field>(m.required);
+		if (withOptional)
+			fields.addAll(m.optional);
+
+		out.append("\tpublic static PacketBuilder encode(PacketBuilder packet");
+		for (Field f : fields)
+			out.append(", ").append(f.type.javaType).append(' ').append(f.name);
+		out.append(") {\n");
+		out.append("\t\treturn packet\n");
+		out.append("\t\t\t.writeByte(PacketHeaders.").append(m.op).append(")");
+		for (Field f : fields)
+			out.append("\n\t\t\t.").append(f.type.writer).append('(').append(f.name).append(')');
+		out.append(";\n");
+		out.append("\t}\n");
+	}
+
+	private static String generate(Message m) {
+		String className = m.name + "Message";
+		boolean hasStrings = false;
+		for (Field f : m.required)
+			hasStrings |= f.type == Type.STRING;
+
+		StringBuilder out = new StringBuilder();
+		out.append("// Generated by MessageCodecGenerator from messages.schema. Do not edit.\n");
+		out.append("package ").append(PACKAGE).append(";\n\n");
+		out.append("import in.kevinj.natladder.common.model.PacketHeaders;\n");
+		out.append("import in.kevinj.natladder.common.util.PacketBuilder;\n\n");
+		out.append("import java.nio.ByteBuffer;\n\n");
+
+		out.append("/**\n");
+		out.append(" * Flyweight over ").append(m.op).append(" messages. wrap() reads fields in place\n");
+		out.append(" * out of a packet body, and encode() writes one into a PacketBuilder.\n");
+		for (String c : m.comments)
+			out.append(" * ").append(c).append('\n');
+		out.append(" * <pre>\n");
+		out.append(" * byte op = ").append(m.op).append('\n');
+		for (Field f : m.required)
+			describe(out, f);
+		if (!m.optional.isEmpty())
+			out.append(" * optional:\n");
+		for (Field f : m.optional)
+			describe(out, f);
+		out.append(" * </pre>\n");
+		out.append(" */\n");
+		out.append("public final class ").append(className).append(" {\n");
+
+		out.append("\t// op and required fields").append(hasStrings ? ", not counting string contents" : "").append('\n');
+		out.append("\tpublic static final int LENGTH = ").append(Byte.SIZE / 8 + fixedLength(m.required)).append(";\n");
+		if (!m.optional.isEmpty())
+			out.append("\tpublic static final int OPTIONAL_LENGTH = ").append(fixedLength(m.optional)).append(";\n");
+		out.append('\n');
+
+		boolean hasFields = !m.required.isEmpty() || !m.optional.isEmpty();
+		if (hasFields) {
+			out.append("\tprivate ByteBuffer buf;\n");
+			out.append("\tprivate int offset;\n");
+		}
+		if (!m.optional.isEmpty()) {
+			out.append("\t// where the optional fields start\n");
+			out.append("\tprivate int end;\n");
+			out.append("\tprivate int limit;\n");
+		}
+		// a string's end offset only has to be kept if a required field follows it
+		List<String> keptEnds = new ArrayList<String>();
+		for (int i = 0; i < m.required.size() - 1; i++)
+			if (m.required.get(i).type == Type.STRING)
+				keptEnds.add(m.required.get(i).name + "End");
+		for (String keptEnd : keptEnds)
+			out.append("\tprivate int ").append(keptEnd).append(";\n");
+		if (hasFields)
+			out.append('\n');
+
+		// wrap() checks the op and that every required field is in bounds. the
+		// offset of each field is a string's end offset plus a constant.
+		out.append("\t/**\n");
+		out.append("\t * @param buf positioned at the op byte, and limited to the end of the message.\n");
+		out.append("\t * @throws IllegalArgumentException if buf is not a complete ").append(m.op).append(" message.\n");
+		out.append("\t */\n");
+		out.append("\tpublic ").append(className).append(" wrap(ByteBuffer buf) {\n");
+		out.append("\t\tint offset = buf.position();\n");
+		out.append("\t\tint limit = buf.limit();\n");
+		out.append("\t\tMessageFields.checkOp(buf, offset, limit, PacketHeaders.").append(m.op).append(", LENGTH, \"").append(m.op).append("\");\n");
+		String base = "offset";
+		int rel = Byte.SIZE / 8;
+		List<String> offsets = new ArrayList<String>();
+		for (Field f : m.required) {
+			offsets.add(base + " + " + rel);
+			if (f.type == Type.STRING) {
+				out.append("\t\tint ").append(f.name).append("End = MessageFields.skipString(buf, ").append(rel == 0 ? base : base + " + " + rel).append(", limit, \"").append(m.op).append("\");\n");
+				base = f.name + "End";
+				rel = 0;
+			} else {
+				rel += f.type.size;
+			}
+		}
+		String end = rel == 0 ? base : base + " + " + rel;
+		if (hasStrings && rel != 0) {
+			// fixed size fields after the last string
+			out.append("\t\tif (").append(end).append(" > limit)\n");
+			out.append("\t\t\tthrow MessageFields.truncated(\"").append(m.op).append("\");\n");
+		}
+		if (hasFields) {
+			out.append('\n');
+			out.append("\t\tthis.buf = buf;\n");
+			out.append("\t\tthis.offset = offset;\n");
+		}
+		for (String keptEnd : keptEnds)
+			out.append("\t\tthis.").append(keptEnd).append(" = ").append(keptEnd).append(";\n");
+		if (!m.optional.isEmpty()) {
+			out.append("\t\tthis.end = ").append(end).append(";\n");
+			out.append("\t\tthis.limit = limit;\n");
+		}
+		out.append("\t\treturn this;\n");
+		out.append("\t}\n");
+
+		for (int i = 0; i < m.required.size(); i++) {
+			Field f = m.required.get(i);
+			String at = offsets.get(i).replace(" + 0", "");
+			if (!at.startsWith("offset"))
+				at = "this." + at;
+			out.append('\n');
+			out.append("\tpublic ").append(f.type.javaType).append(' ').append(f.name).append("() {\n");
+			if (f.type == Type.STRING)
+				out.append("\t\treturn MessageFields.readString(buf, ").append(at).append(");\n");
+			else
+				out.append("\t\treturn buf.").append(f.type.getter).append('(').append(at).append(");\n");
+			out.append("\t}\n");
+		}
+
+		if (!m.optional.isEmpty()) {
+			out.append('\n');
+			out.append("\tpublic boolean hasOptionalFields() {\n");
+			out.append("\t\treturn limit - end >= OPTIONAL_LENGTH;\n");
+			out.append("\t}\n");
+			rel = 0;
+			for (Field f : m.optional) {
+				out.append('\n');
+				out.append("\t/**\n");
+				out.append("\t * Only valid if hasOptionalFields().\n");
+				out.append("\t */\n");
+				out.append("\tpublic ").append(f.type.javaType).append(' ').append(f.name).append("() {\n");
+				out.append("\t\treturn buf.").append(f.type.getter).append("(end").append(rel == 0 ? "" : " + " + rel).append(");\n");
+				out.append("\t}\n");
+				rel += f.type.size;
+			}
+		}
+
+		out.append('\n');
+		emitEncode(out, m, false);
+		if (!m.optional.isEmpty()) {
+			out.append('\n');
+			emitEncode(out, m, true);
+		}
+		out.append("}\n");
+		return out.toString();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: MessageCodecGenerator <schema file> <source root>");
+			System.exit(1);
+		}
+
+		File dir = new File(args[1], PACKAGE.replace('.', File.separatorChar));
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		for (Message m : parse(new File(args[0]))) {
+			File file = new File(dir, m.name + "Message.java");
+			Writer out = new OutputStreamWriter(new FileOutputStream(file), utf8);
+			try {
+				out.write(generate(m));
+			} finally {
+				out.close();
+			}
+			System.out.println("Wrote " + file);
+		}
+	}
+}
@@ -1,9 +1,9 @@
 package in.kevinj.natladder.common.model;
 
 import in.kevinj.natladder.common.model.RemoteNode.RemoteNodeFactory;
+import in.kevinj.natladder.common.netimpl.BufferAccount;
 import in.kevinj.natladder.common.netimpl.BufferCache;
 import in.kevinj.natladder.common.netimpl.ClientManager;
-import in.kevinj.natladder.common.util.ScheduledHashedWheelExecutor;
 
 import java.util.Collections;
 import java.util.Comparator;
@@ -11,7 +11,7 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,16 +29,23 @@ public abstract class LocalRouter<T extends LocalRouter<T>> {
 	private final SortedMap<Short, RemoteNode<T>> downstreamNodes;
 	private final Queue<Short> downstreamNodeCodeGaps;
 
-	private final BufferCache bufferCache;
-	private final ScheduledExecutorService wheelTimer;
+	private final RouterResources resources;
+	// what this router is holding out of a cache that may be shared with other routers
+	private final BufferAccount bufferAccount;
 
 	private boolean isNodeCodeSet;
 	private short thisNodeCode;
 
 	public LocalRouter(ClientType localType) {
+		this(localType, new RouterResources());
+	}
+
+	public LocalRouter(ClientType localType, RouterResources resources) {
 		this.localType = localType;
+		// lookups happen on every event loop thread, so the node maps must be safe for concurrent
+		// reads. registerNode() and deregisterNode() are still synchronized to keep gaps consistent.
 		// upstream node codes are positive. lastKey() should return the highest magnitude positive number.
-		upstreamNodes = new TreeMap<Short, RemoteNode<T>>(new Comparator<Short>() {
+		upstreamNodes = new ConcurrentSkipListMap<Short, RemoteNode<T>>(new Comparator<Short>() {
 			@Override
 			public int compare(Short o1, Short o2) {
 				return o1.compareTo(o2);
@@ -46,10 +53,11 @@ public abstract class LocalRouter<T extends LocalRouter<T>> {
 		});
 		upstreamNodeCodeGaps = new LinkedList<Short>();
 		// downstream node codes are negative. lastKey() should return the highest magnitude negative number.
-		downstreamNodes = new TreeMap<Short, RemoteNode<T>>(Collections.reverseOrder());
+		downstreamNodes = new ConcurrentSkipListMap<Short, RemoteNode<T>>(Collections.<Short>reverseOrder());
 		downstreamNodeCodeGaps = new LinkedList<Short>();
-		bufferCache = new BufferCache();
-		wheelTimer = new ScheduledHashedWheelExecutor();
+		bufferAccount = new BufferAccount();
+		resources.acquire();
+		this.resources = resources;
 	}
 
 	public abstract RemoteNodeFactory<T> internalNodeFactory();
@@ -70,12 +78,20 @@ public abstract class LocalRouter<T extends LocalRouter<T>> {
 		return clientManager;
 	}
 
+	public RouterResources getResources() {
+		return resources;
+	}
+
 	public BufferCache getBufferCache() {
-		return bufferCache;
+		return resources.getBufferCache();
+	}
+
+	public BufferAccount getBufferAccount() {
+		return bufferAccount;
 	}
 
 	public ScheduledExecutorService getWheelTimer() {
-		return wheelTimer;
+		return resources.getWheelTimer();
 	}
 
 	public short getLocalCode() {
@@ -173,6 +189,8 @@ public abstract class LocalRouter<T extends LocalRouter<T>> {
 	}
 
 	public void dispose() {
-		getWheelTimer().shutdownNow();
+		// the timer only goes away with the last router that shares it
+		if (!resources.release())
+			LOG.log(Level.FINE, "{0} router disposed, {1} still sharing its timer", new Object[] { getLocalType(), resources.getRouterCount() });
 	}
 }
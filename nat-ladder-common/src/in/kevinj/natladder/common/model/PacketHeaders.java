@@ -10,7 +10,8 @@ public class PacketHeaders {
 		FOUND_CUT = 0x06,
 		MAKE_PIPE = 0x07,
 		PIPE_MADE = 0x08,
-		PIPE_FAIL = 0x09
+		PIPE_FAIL = 0x09,
+		PIPE_CREDIT = 0x0A
 	;
 
 	public static final byte
@@ -23,4 +24,9 @@ public class PacketHeaders {
 		FOUND_CUT_TERMINUS = 0x01,
 		FOUND_CUT_NODE = 0x02
 	;
+
+	// negotiated per pipe in MAKE_PIPE and PIPE_MADE
+	public static final byte
+		PIPE_CAPABILITY_CREDIT = 0x01
+	;
 }
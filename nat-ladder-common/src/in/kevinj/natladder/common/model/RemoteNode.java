@@ -1,9 +1,9 @@
 package in.kevinj.natladder.common.model;
 
 import in.kevinj.natladder.common.netimpl.ClientSession;
+import in.kevinj.natladder.common.netimpl.PooledBuffer;
 import in.kevinj.natladder.common.util.PacketParser;
 
-import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -88,7 +88,7 @@ public abstract class RemoteNode<T extends LocalRouter<T>> {
 
 	public static String getRemoteTypeString(SessionType sessionType, ClientType remoteType) {
 		if (remoteType == null)
-			return sessionType.toString();
+			return String.valueOf(sessionType);
 		else
 			return remoteType.toString();
 	}
@@ -119,7 +119,12 @@ public abstract class RemoteNode<T extends LocalRouter<T>> {
 		throw new UnsupportedOperationException("RemoteNode does not accept control packets");
 	}
 
-	public abstract void deferRaw(ByteBuffer readBuffer);
+	public boolean isDeferringRaw() {
+		return false;
+	}
+
+	// the caller releases readBuffer afterwards, so retain() it to keep it queued
+	public abstract void deferRaw(PooledBuffer readBuffer);
 
 	public abstract void flushRaw();
 
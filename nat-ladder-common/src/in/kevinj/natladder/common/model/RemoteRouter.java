@@ -1,5 +1,15 @@
 package in.kevinj.natladder.common.model;
 
+import in.kevinj.natladder.common.model.codec.AcceptedMessage;
+import in.kevinj.natladder.common.model.codec.FoundCutMessage;
+import in.kevinj.natladder.common.model.codec.IdentifyMessage;
+import in.kevinj.natladder.common.model.codec.MakePipeMessage;
+import in.kevinj.natladder.common.model.codec.PipeCreditMessage;
+import in.kevinj.natladder.common.model.codec.PipeFailMessage;
+import in.kevinj.natladder.common.model.codec.PipeMadeMessage;
+import in.kevinj.natladder.common.model.codec.PongMessage;
+import in.kevinj.natladder.common.model.codec.RejectedMessage;
+import in.kevinj.natladder.common.netimpl.PooledBuffer;
 import in.kevinj.natladder.common.util.PacketParser;
 import in.kevinj.natladder.common.util.Pair;
 
@@ -10,8 +20,27 @@ public abstract class RemoteRouter<T extends LocalRouter<T>> extends RemoteNode<
 	private SessionType sessionType;
 	protected short thisMessageDest;
 
+	// control packets are only processed on our session's event loop, so
+	// each message can be decoded with the same flyweight every time
+	private final IdentifyMessage identifyMessage;
+	private final AcceptedMessage acceptedMessage;
+	private final RejectedMessage rejectedMessage;
+	private final FoundCutMessage foundCutMessage;
+	private final MakePipeMessage makePipeMessage;
+	private final PipeMadeMessage pipeMadeMessage;
+	private final PipeFailMessage pipeFailMessage;
+	private final PipeCreditMessage pipeCreditMessage;
+
 	public RemoteRouter(T parentModel) {
 		super(parentModel);
+		identifyMessage = new IdentifyMessage();
+		acceptedMessage = new AcceptedMessage();
+		rejectedMessage = new RejectedMessage();
+		foundCutMessage = new FoundCutMessage();
+		makePipeMessage = new MakePipeMessage();
+		pipeMadeMessage = new PipeMadeMessage();
+		pipeFailMessage = new PipeFailMessage();
+		pipeCreditMessage = new PipeCreditMessage();
 	}
 
 	@Override
@@ -21,6 +50,10 @@ public abstract class RemoteRouter<T extends LocalRouter<T>> extends RemoteNode<
 
 	@Override
 	protected ClientType getRemoteType() {
+		// a connection that closes before it identified itself has no type yet
+		if (getSessionType() == null)
+			return null;
+
 		return getLocalNode().getRemoteType(getSessionType());
 	}
 
@@ -57,37 +90,35 @@ public abstract class RemoteRouter<T extends LocalRouter<T>> extends RemoteNode<
 	public short[] notifyFoundCutExternal(short ourTerminus) {
 		short[] relayChain = (short[]) getLocalNode().removeRelayChain(ourTerminus);
 		if (relayChain != null) {
-			getClientSession().packetBuilder(Byte.SIZE / 8 * 2 + Short.SIZE / 8, relayChain[0], LocalRouter.CONTROL_CODE)
-				.writeByte(PacketHeaders.FOUND_CUT)
-				.writeByte(PacketHeaders.FOUND_CUT_TERMINUS)
-				.writeShort(relayChain[1])
-			.send();
+			FoundCutMessage.encode(getClientSession().packetBuilder(FoundCutMessage.LENGTH, relayChain[0], LocalRouter.CONTROL_CODE),
+				PacketHeaders.FOUND_CUT_TERMINUS,
+				relayChain[1]
+			).send();
 		}
 		return relayChain;
 	}
 
 	@Override
 	public void notifyFoundCutInternal(short otherNode) {
-		getClientSession().packetBuilder(Byte.SIZE / 8 * 2 + Short.SIZE / 8, LocalRouter.CONTROL_CODE)
-			.writeByte(PacketHeaders.FOUND_CUT)
-			.writeByte(PacketHeaders.FOUND_CUT_NODE)
-			.writeShort(otherNode)
-		.send();
+		FoundCutMessage.encode(getClientSession().packetBuilder(FoundCutMessage.LENGTH, LocalRouter.CONTROL_CODE),
+			PacketHeaders.FOUND_CUT_NODE,
+			otherNode
+		).send();
 	}
 
-	protected abstract void processIdentify(PacketParser packet);
+	protected abstract void processIdentify(IdentifyMessage message);
 
-	protected void processAccepted(PacketParser packet) {
+	protected void processAccepted(AcceptedMessage message) {
 		setRemoteCode(ClientType.CENTRAL_RELAY_NODE_CODE);
 		getLocalNode().registerNode(this);
-		getLocalNode().setLocalCode(packet.readShort());
+		getLocalNode().setLocalCode(message.nodeCode());
 		LOG.log(Level.INFO, "Connection with {0} ({1}) at {2} established", new Object[] { getRemoteTypeString(), getRemoteCode(), getClientSession().getAddress() });
 	}
 
-	protected abstract void processRejected(PacketParser packet);
+	protected abstract void processRejected(RejectedMessage message);
 
-	protected Pair<Short, short[]> processFoundCut(PacketParser packet) {
-		short ourTerminus = packet.readShort();
+	protected Pair<Short, short[]> processFoundCut(FoundCutMessage message) {
+		short ourTerminus = message.nodeCode();
 		short[] relayChain = (short[]) getLocalNode().removeRelayChain(ourTerminus);
 		if (relayChain == null)
 			throw new IllegalStateException("Cut a non-existent connection (node code: " + ourTerminus + ")");
@@ -102,43 +133,58 @@ public abstract class RemoteRouter<T extends LocalRouter<T>> extends RemoteNode<
 		return new Pair<Short, short[]>(Short.valueOf(ourTerminus), relayChain);
 	}
 
-	protected abstract void processMakePipe(PacketParser packet);
+	protected abstract void processMakePipe(MakePipeMessage message);
+
+	protected abstract void processPipeMade(PipeMadeMessage message);
 
-	protected abstract void processPipeMade(PacketParser packet);
+	protected abstract void processPipeFail(PipeFailMessage message);
 
-	protected abstract void processPipeFail(PacketParser packet);
+	protected void processPipeCredit(PipeCreditMessage message) {
+		short ourTerminus = message.terminus();
+		int credit = message.credit();
+
+		RemoteNode<T> terminus = getNextNode(ourTerminus);
+		if (terminus != null)
+			terminus.getClientSession().grantPipeCredit(credit);
+		// terminus can be null if the pipe was cut while the credit was in flight
+	}
 
 	@Override
 	public void processControlPacket(PacketParser packet) {
 		try {
-			byte op = packet.readByte();
+			// the message codecs read their fields in place out of the body
+			ByteBuffer body = packet.buffer();
+			byte op = body.get(body.position());
 			switch (op) {
 				case PacketHeaders.IDENTIFY:
-					processIdentify(packet);
+					processIdentify(identifyMessage.wrap(body));
 					break;
 				case PacketHeaders.ACCEPTED:
-					processAccepted(packet);
+					processAccepted(acceptedMessage.wrap(body));
 					break;
 				case PacketHeaders.REJECTED:
-					processRejected(packet);
+					processRejected(rejectedMessage.wrap(body));
 					break;
 				case PacketHeaders.PING:
-					getClientSession().send(new byte[] { PacketHeaders.PONG }, LocalRouter.CONTROL_CODE);
+					PongMessage.encode(getClientSession().packetBuilder(PongMessage.LENGTH, LocalRouter.CONTROL_CODE)).send();
 					break;
 				case PacketHeaders.PONG:
 					getClientSession().receivedPong();
 					break;
 				case PacketHeaders.FOUND_CUT:
-					processFoundCut(packet);
+					processFoundCut(foundCutMessage.wrap(body));
 					break;
 				case PacketHeaders.MAKE_PIPE:
-					processMakePipe(packet);
+					processMakePipe(makePipeMessage.wrap(body));
 					break;
 				case PacketHeaders.PIPE_MADE:
-					processPipeMade(packet);
+					processPipeMade(pipeMadeMessage.wrap(body));
 					break;
 				case PacketHeaders.PIPE_FAIL:
-					processPipeFail(packet);
+					processPipeFail(pipeFailMessage.wrap(body));
+					break;
+				case PacketHeaders.PIPE_CREDIT:
+					processPipeCredit(pipeCreditMessage.wrap(body));
 					break;
 				default:
 					throw new UnsupportedOperationException(getLocalNode().getLocalType() + " does not support this packet operation " + op);
@@ -149,7 +195,7 @@ public abstract class RemoteRouter<T extends LocalRouter<T>> extends RemoteNode<
 	}
 
 	@Override
-	public void deferRaw(ByteBuffer readBuffer) {
+	public void deferRaw(PooledBuffer readBuffer) {
 		throw new UnsupportedOperationException(getSessionType() + " does not support raw connections");
 	}
 
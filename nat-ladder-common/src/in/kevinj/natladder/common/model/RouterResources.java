@@ -0,0 +1,83 @@
+package in.kevinj.natladder.common.model;
+
+import in.kevinj.natladder.common.netimpl.BufferCache;
+import in.kevinj.natladder.common.util.ScheduledHashedWheelExecutor;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The buffer cache and timer that a LocalRouter runs on. Several routers in
+ * the same JVM can be constructed with one instance so that they share a
+ * single timer thread and a single pool of idle direct buffers.
+ *
+ * Every router that uses us holds a reference from its constructor until its
+ * dispose(). The timer is shut down when the last reference is released, and
+ * after that no more routers can be constructed with this instance.
+ */
+public class RouterResources {
+	// how often to give idle buffers back after a traffic spike
+	private static final int BUFFER_TRIM_INTERVAL = 10; //in seconds
+
+	private final BufferCache bufferCache;
+	private final ScheduledHashedWheelExecutor wheelTimer;
+	private int routers;
+	private boolean released;
+
+	public RouterResources(BufferCache bufferCache, ScheduledHashedWheelExecutor wheelTimer) {
+		this.bufferCache = bufferCache;
+		this.wheelTimer = wheelTimer;
+		wheelTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				RouterResources.this.bufferCache.trim();
+			}
+		}, BUFFER_TRIM_INTERVAL, BUFFER_TRIM_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	public RouterResources() {
+		// two levels of 512 x 100ms cover over 7 hours, so keep-alive and expiry timers that
+		// are a minute or more out don't get rechecked every 51 seconds
+		this(new BufferCache(), new ScheduledHashedWheelExecutor(512, 2, 100, TimeUnit.MILLISECONDS));
+	}
+
+	public BufferCache getBufferCache() {
+		return bufferCache;
+	}
+
+	public ScheduledExecutorService getWheelTimer() {
+		return wheelTimer;
+	}
+
+	/* package-private */ synchronized void acquire() {
+		if (released)
+			throw new IllegalStateException("Router resources were already shut down");
+
+		routers++;
+	}
+
+	/**
+	 * @return true if this was the last router and the timer was shut down.
+	 */
+	/* package-private */ boolean release() {
+		synchronized (this) {
+			if (routers <= 0)
+				throw new IllegalStateException("Router resources were released too many times");
+			if (--routers > 0)
+				return false;
+
+			released = true;
+		}
+		wheelTimer.shutdownNow();
+		return true;
+	}
+
+	public synchronized int getRouterCount() {
+		return routers;
+	}
+
+	@Override
+	public String toString() {
+		return "routers=" + getRouterCount() + ", cache={" + bufferCache + "}, timer={" + wheelTimer + "}";
+	}
+}
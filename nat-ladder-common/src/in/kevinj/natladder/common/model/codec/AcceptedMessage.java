@@ -0,0 +1,82 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over ACCEPTED messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * <pre>
+ * byte op = ACCEPTED
+ * short nodeCode
+ * optional:
+ * int connectToPort - entry nodes only
+ * short exitNodeCode
+ * </pre>
+ */
+public final class AcceptedMessage {
+	// op and required fields
+	public static final int LENGTH = 3;
+	public static final int OPTIONAL_LENGTH = 6;
+
+	private ByteBuffer buf;
+	private int offset;
+	// where the optional fields start
+	private int end;
+	private int limit;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete ACCEPTED message.
+	 */
+	public AcceptedMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.ACCEPTED, LENGTH, "ACCEPTED");
+
+		this.buf = buf;
+		this.offset = offset;
+		this.end = offset + 3;
+		this.limit = limit;
+		return this;
+	}
+
+	public short nodeCode() {
+		return buf.getShort(offset + 1);
+	}
+
+	public boolean hasOptionalFields() {
+		return limit - end >= OPTIONAL_LENGTH;
+	}
+
+	/**
+	 * Only valid if hasOptionalFields().
+	 */
+	public int connectToPort() {
+		return buf.getInt(end);
+	}
+
+	/**
+	 * Only valid if hasOptionalFields().
+	 */
+	public short exitNodeCode() {
+		return buf.getShort(end + 4);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short nodeCode) {
+		return packet
+			.writeByte(PacketHeaders.ACCEPTED)
+			.writeShort(nodeCode);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short nodeCode, int connectToPort, short exitNodeCode) {
+		return packet
+			.writeByte(PacketHeaders.ACCEPTED)
+			.writeShort(nodeCode)
+			.writeInt(connectToPort)
+			.writeShort(exitNodeCode);
+	}
+}
@@ -0,0 +1,55 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over FOUND_CUT messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * nodeCode is our terminus for FOUND_CUT_TERMINUS, or the node that was lost
+ * for FOUND_CUT_NODE
+ * <pre>
+ * byte op = FOUND_CUT
+ * byte cutType
+ * short nodeCode
+ * </pre>
+ */
+public final class FoundCutMessage {
+	// op and required fields
+	public static final int LENGTH = 4;
+
+	private ByteBuffer buf;
+	private int offset;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete FOUND_CUT message.
+	 */
+	public FoundCutMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.FOUND_CUT, LENGTH, "FOUND_CUT");
+
+		this.buf = buf;
+		this.offset = offset;
+		return this;
+	}
+
+	public byte cutType() {
+		return buf.get(offset + 1);
+	}
+
+	public short nodeCode() {
+		return buf.getShort(offset + 2);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, byte cutType, short nodeCode) {
+		return packet
+			.writeByte(PacketHeaders.FOUND_CUT)
+			.writeByte(cutType)
+			.writeShort(nodeCode);
+	}
+}
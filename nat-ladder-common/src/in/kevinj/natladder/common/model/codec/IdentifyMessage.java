@@ -0,0 +1,91 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over IDENTIFY messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * <pre>
+ * byte op = IDENTIFY
+ * byte sessionType
+ * String identifier
+ * String password
+ * optional:
+ * int connectToPort - exit nodes only
+ * </pre>
+ */
+public final class IdentifyMessage {
+	// op and required fields, not counting string contents
+	public static final int LENGTH = 6;
+	public static final int OPTIONAL_LENGTH = 4;
+
+	private ByteBuffer buf;
+	private int offset;
+	// where the optional fields start
+	private int end;
+	private int limit;
+	private int identifierEnd;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete IDENTIFY message.
+	 */
+	public IdentifyMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.IDENTIFY, LENGTH, "IDENTIFY");
+		int identifierEnd = MessageFields.skipString(buf, offset + 2, limit, "IDENTIFY");
+		int passwordEnd = MessageFields.skipString(buf, identifierEnd, limit, "IDENTIFY");
+
+		this.buf = buf;
+		this.offset = offset;
+		this.identifierEnd = identifierEnd;
+		this.end = passwordEnd;
+		this.limit = limit;
+		return this;
+	}
+
+	public byte sessionType() {
+		return buf.get(offset + 1);
+	}
+
+	public String identifier() {
+		return MessageFields.readString(buf, offset + 2);
+	}
+
+	public String password() {
+		return MessageFields.readString(buf, this.identifierEnd);
+	}
+
+	public boolean hasOptionalFields() {
+		return limit - end >= OPTIONAL_LENGTH;
+	}
+
+	/**
+	 * Only valid if hasOptionalFields().
+	 */
+	public int connectToPort() {
+		return buf.getInt(end);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, byte sessionType, String identifier, String password) {
+		return packet
+			.writeByte(PacketHeaders.IDENTIFY)
+			.writeByte(sessionType)
+			.writeString(identifier)
+			.writeString(password);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, byte sessionType, String identifier, String password, int connectToPort) {
+		return packet
+			.writeByte(PacketHeaders.IDENTIFY)
+			.writeByte(sessionType)
+			.writeString(identifier)
+			.writeString(password)
+			.writeInt(connectToPort);
+	}
+}
@@ -0,0 +1,80 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over MAKE_PIPE messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * <pre>
+ * byte op = MAKE_PIPE
+ * short entryNodeCode
+ * short entryTerminus
+ * optional:
+ * byte capabilities - PIPE_CAPABILITY_* flags that the entry node supports
+ * </pre>
+ */
+public final class MakePipeMessage {
+	// op and required fields
+	public static final int LENGTH = 5;
+	public static final int OPTIONAL_LENGTH = 1;
+
+	private ByteBuffer buf;
+	private int offset;
+	// where the optional fields start
+	private int end;
+	private int limit;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete MAKE_PIPE message.
+	 */
+	public MakePipeMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.MAKE_PIPE, LENGTH, "MAKE_PIPE");
+
+		this.buf = buf;
+		this.offset = offset;
+		this.end = offset + 5;
+		this.limit = limit;
+		return this;
+	}
+
+	public short entryNodeCode() {
+		return buf.getShort(offset + 1);
+	}
+
+	public short entryTerminus() {
+		return buf.getShort(offset + 3);
+	}
+
+	public boolean hasOptionalFields() {
+		return limit - end >= OPTIONAL_LENGTH;
+	}
+
+	/**
+	 * Only valid if hasOptionalFields().
+	 */
+	public byte capabilities() {
+		return buf.get(end);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short entryNodeCode, short entryTerminus) {
+		return packet
+			.writeByte(PacketHeaders.MAKE_PIPE)
+			.writeShort(entryNodeCode)
+			.writeShort(entryTerminus);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short entryNodeCode, short entryTerminus, byte capabilities) {
+		return packet
+			.writeByte(PacketHeaders.MAKE_PIPE)
+			.writeShort(entryNodeCode)
+			.writeShort(entryTerminus)
+			.writeByte(capabilities);
+	}
+}
@@ -0,0 +1,45 @@
+package in.kevinj.natladder.common.model.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Shared by the generated message codecs. Everything reads at absolute
+ * offsets so that the wrapped buffer's position is never touched.
+ */
+/* package-private */ final class MessageFields {
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	private MessageFields() {
+	}
+
+	public static IllegalArgumentException truncated(String op) {
+		return new IllegalArgumentException("Truncated " + op + " message");
+	}
+
+	public static void checkOp(ByteBuffer buf, int offset, int limit, byte op, int length, String name) {
+		if (limit - offset < length)
+			throw truncated(name);
+		if (buf.get(offset) != op)
+			throw new IllegalArgumentException("Expected " + name + " message but got op " + buf.get(offset));
+	}
+
+	/**
+	 * @return the offset just past the string that starts at offset.
+	 */
+	public static int skipString(ByteBuffer buf, int offset, int limit, String op) {
+		if (limit - offset < Short.SIZE / 8)
+			throw truncated(op);
+		int end = offset + Short.SIZE / 8 + (buf.getShort(offset) & 0xFFFF);
+		if (end > limit)
+			throw truncated(op);
+		return end;
+	}
+
+	public static String readString(ByteBuffer buf, int offset) {
+		byte[] bytes = new byte[buf.getShort(offset) & 0xFFFF];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buf.get(offset + Short.SIZE / 8 + i);
+		return new String(bytes, utf8);
+	}
+}
@@ -0,0 +1,53 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over PIPE_CREDIT messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * <pre>
+ * byte op = PIPE_CREDIT
+ * short terminus
+ * int credit
+ * </pre>
+ */
+public final class PipeCreditMessage {
+	// op and required fields
+	public static final int LENGTH = 7;
+
+	private ByteBuffer buf;
+	private int offset;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete PIPE_CREDIT message.
+	 */
+	public PipeCreditMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.PIPE_CREDIT, LENGTH, "PIPE_CREDIT");
+
+		this.buf = buf;
+		this.offset = offset;
+		return this;
+	}
+
+	public short terminus() {
+		return buf.getShort(offset + 1);
+	}
+
+	public int credit() {
+		return buf.getInt(offset + 3);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short terminus, int credit) {
+		return packet
+			.writeByte(PacketHeaders.PIPE_CREDIT)
+			.writeShort(terminus)
+			.writeInt(credit);
+	}
+}
@@ -0,0 +1,75 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over PIPE_FAIL messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * to an entry node, code is its terminus. to an exit node, code is the entry
+ * node and entryTerminus follows it.
+ * <pre>
+ * byte op = PIPE_FAIL
+ * short code
+ * optional:
+ * short entryTerminus
+ * </pre>
+ */
+public final class PipeFailMessage {
+	// op and required fields
+	public static final int LENGTH = 3;
+	public static final int OPTIONAL_LENGTH = 2;
+
+	private ByteBuffer buf;
+	private int offset;
+	// where the optional fields start
+	private int end;
+	private int limit;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete PIPE_FAIL message.
+	 */
+	public PipeFailMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.PIPE_FAIL, LENGTH, "PIPE_FAIL");
+
+		this.buf = buf;
+		this.offset = offset;
+		this.end = offset + 3;
+		this.limit = limit;
+		return this;
+	}
+
+	public short code() {
+		return buf.getShort(offset + 1);
+	}
+
+	public boolean hasOptionalFields() {
+		return limit - end >= OPTIONAL_LENGTH;
+	}
+
+	/**
+	 * Only valid if hasOptionalFields().
+	 */
+	public short entryTerminus() {
+		return buf.getShort(end);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short code) {
+		return packet
+			.writeByte(PacketHeaders.PIPE_FAIL)
+			.writeShort(code);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short code, short entryTerminus) {
+		return packet
+			.writeByte(PacketHeaders.PIPE_FAIL)
+			.writeShort(code)
+			.writeShort(entryTerminus);
+	}
+}
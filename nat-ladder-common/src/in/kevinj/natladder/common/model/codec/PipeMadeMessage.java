@@ -0,0 +1,89 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over PIPE_MADE messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * capabilities are only sent if the entry node sent its own. they are the
+ * ones that both ends support.
+ * <pre>
+ * byte op = PIPE_MADE
+ * short entryTerminus
+ * short exitNodeCode
+ * short exitTerminus
+ * optional:
+ * byte capabilities
+ * </pre>
+ */
+public final class PipeMadeMessage {
+	// op and required fields
+	public static final int LENGTH = 7;
+	public static final int OPTIONAL_LENGTH = 1;
+
+	private ByteBuffer buf;
+	private int offset;
+	// where the optional fields start
+	private int end;
+	private int limit;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete PIPE_MADE message.
+	 */
+	public PipeMadeMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.PIPE_MADE, LENGTH, "PIPE_MADE");
+
+		this.buf = buf;
+		this.offset = offset;
+		this.end = offset + 7;
+		this.limit = limit;
+		return this;
+	}
+
+	public short entryTerminus() {
+		return buf.getShort(offset + 1);
+	}
+
+	public short exitNodeCode() {
+		return buf.getShort(offset + 3);
+	}
+
+	public short exitTerminus() {
+		return buf.getShort(offset + 5);
+	}
+
+	public boolean hasOptionalFields() {
+		return limit - end >= OPTIONAL_LENGTH;
+	}
+
+	/**
+	 * Only valid if hasOptionalFields().
+	 */
+	public byte capabilities() {
+		return buf.get(end);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short entryTerminus, short exitNodeCode, short exitTerminus) {
+		return packet
+			.writeByte(PacketHeaders.PIPE_MADE)
+			.writeShort(entryTerminus)
+			.writeShort(exitNodeCode)
+			.writeShort(exitTerminus);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, short entryTerminus, short exitNodeCode, short exitTerminus, byte capabilities) {
+		return packet
+			.writeByte(PacketHeaders.PIPE_MADE)
+			.writeShort(entryTerminus)
+			.writeShort(exitNodeCode)
+			.writeShort(exitTerminus)
+			.writeByte(capabilities);
+	}
+}
@@ -0,0 +1,35 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over PONG messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * <pre>
+ * byte op = PONG
+ * </pre>
+ */
+public final class PongMessage {
+	// op and required fields
+	public static final int LENGTH = 1;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete PONG message.
+	 */
+	public PongMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.PONG, LENGTH, "PONG");
+		return this;
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet) {
+		return packet
+			.writeByte(PacketHeaders.PONG);
+	}
+}
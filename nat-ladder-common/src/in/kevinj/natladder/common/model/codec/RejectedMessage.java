@@ -0,0 +1,47 @@
+// Generated by MessageCodecGenerator from messages.schema. Do not edit.
+package in.kevinj.natladder.common.model.codec;
+
+import in.kevinj.natladder.common.model.PacketHeaders;
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over REJECTED messages. wrap() reads fields in place
+ * out of a packet body, and encode() writes one into a PacketBuilder.
+ * <pre>
+ * byte op = REJECTED
+ * byte reason
+ * </pre>
+ */
+public final class RejectedMessage {
+	// op and required fields
+	public static final int LENGTH = 2;
+
+	private ByteBuffer buf;
+	private int offset;
+
+	/**
+	 * @param buf positioned at the op byte, and limited to the end of the message.
+	 * @throws IllegalArgumentException if buf is not a complete REJECTED message.
+	 */
+	public RejectedMessage wrap(ByteBuffer buf) {
+		int offset = buf.position();
+		int limit = buf.limit();
+		MessageFields.checkOp(buf, offset, limit, PacketHeaders.REJECTED, LENGTH, "REJECTED");
+
+		this.buf = buf;
+		this.offset = offset;
+		return this;
+	}
+
+	public byte reason() {
+		return buf.get(offset + 1);
+	}
+
+	public static PacketBuilder encode(PacketBuilder packet, byte reason) {
+		return packet
+			.writeByte(PacketHeaders.REJECTED)
+			.writeByte(reason);
+	}
+}
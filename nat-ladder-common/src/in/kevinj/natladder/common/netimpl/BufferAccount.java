@@ -0,0 +1,55 @@
+package in.kevinj.natladder.common.netimpl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tallies the pooled buffers that one router takes out of a BufferCache, so
+ * that a cache shared by several routers can still be attributed to each of
+ * them. A buffer is credited back to the account that took it once its last
+ * reference is released, whichever thread or router releases it.
+ */
+public final class BufferAccount {
+	private final AtomicLong takes;
+	private final AtomicLong returns;
+	private final AtomicLong outstandingBytes;
+
+	public BufferAccount() {
+		takes = new AtomicLong();
+		returns = new AtomicLong();
+		outstandingBytes = new AtomicLong();
+	}
+
+	/* package-private */ void taken(int capacity) {
+		takes.incrementAndGet();
+		outstandingBytes.addAndGet(capacity);
+	}
+
+	/* package-private */ void returned(int capacity) {
+		returns.incrementAndGet();
+		outstandingBytes.addAndGet(-capacity);
+	}
+
+	public long getTakeCount() {
+		return takes.get();
+	}
+
+	public long getReturnCount() {
+		return returns.get();
+	}
+
+	public long getOutstandingCount() {
+		return takes.get() - returns.get();
+	}
+
+	/**
+	 * @return the total capacity of the buffers that are still referenced.
+	 */
+	public long getOutstandingBytes() {
+		return outstandingBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "takes=" + getTakeCount() + ", returns=" + getReturnCount() + ", outstanding=" + getOutstandingCount() + " (" + getOutstandingBytes() + " bytes)";
+	}
+}
@@ -1,62 +1,776 @@
 package in.kevinj.natladder.common.netimpl;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-// TODO: allocate a giant direct ByteBuffer and use it as a heap.
-// takeBuffer() will take a minimum size parameter and return an
-// optimal unused slice of the ByteBuffer. when adjacent slices
-// are returned, those slices will be coalesced into one large
-// free block.
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
- * To ensure fungibility, all ByteBuffer retrieved and stashed must be direct and have a length of DEFAULT_BUFFER_SIZE.
+ * A buddy allocator over one or more large direct ByteBuffer arenas. Every
+ * buffer handed out is a slice of an arena with a power of two capacity of at
+ * least the requested size. When a slice is returned and its buddy is also
+ * free, the two are coalesced into one larger free block.
+ *
+ * In front of the arenas, every thread keeps a magazine of slices for each
+ * size class, similar to jemalloc's tcache, so that most takes and returns
+ * don't touch any shared state. Magazines exchange slices with a shared depot
+ * BATCH_SIZE at a time, and the depot goes to the arenas only once it's empty
+ * or overflowing.
+ *
+ * To ensure fungibility, buffers that are returned must be direct and have a
+ * power of two capacity between the minimum block size and the arena size.
+ * Others are rejected. Requests larger than an entire arena are satisfied with
+ * a bespoke direct buffer whose handle doesn't lead back to the cache, so it
+ * is never pooled.
+ *
+ * The arenas never grow past a maximum pooled size. Once they are exhausted,
+ * takes are satisfied with bespoke direct buffers as well and the cache
+ * reports critical pressure, so that callers can shed load before direct
+ * memory runs out. trim() should be called periodically to give idle slices
+ * in the depot and entirely free arenas back after a spike.
+ *
+ * Slices are only weakly referenced by the cache while they are taken. One
+ * that is garbage collected without being returned is counted as leaked and
+ * its block is reclaimed. For a sample of one in LEAK_DETECTION_INTERVAL
+ * takes, the stack trace of the take is recorded and logged if that buffer
+ * leaks. Set the natladder.leakDetectionInterval system property to 0 to turn
+ * sampling off, or to 1 to record every take.
+ *
+ * All methods of this class are thread safe.
  *
  * @author Kevin Jin
  */
 public class BufferCache {
+	private static final Logger LOG = Logger.getLogger(BufferCache.class.getName());
+
 	public static final int DEFAULT_BUFFER_SIZE = 4096;
+	public static final int DEFAULT_ARENA_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MIN_BLOCK_SIZE = 256;
+	public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+	public enum Pressure {
+		// plenty of room left in the arenas
+		NORMAL,
+		// over HIGH_PRESSURE_RATIO of the maximum pooled size is in use
+		HIGH,
+		// the arenas are (nearly) exhausted and takes may have to allocate
+		// direct memory outside of the pool
+		CRITICAL
+	}
+
+	private static class Arena {
+		private final ByteBuffer memory;
+		// free blocks of each order are kept in an intrusive doubly linked list,
+		// indexed by the block's offset in units of the minimum block size.
+		private final int[] next, prev;
+		// order + 1 of the free block that starts at each index, or 0 if none does
+		private final byte[] freeOrder;
+		private final int[] freeHeads;
+
+		public Arena(int size, int minOrder, int maxOrder) {
+			memory = ByteBuffer.allocateDirect(size);
+			int blocks = size >>> minOrder;
+			next = new int[blocks];
+			prev = new int[blocks];
+			freeOrder = new byte[blocks];
+			freeHeads = new int[maxOrder - minOrder + 1];
+			for (int i = 0; i < freeHeads.length; i++)
+				freeHeads[i] = -1;
+			// the entire arena starts off as one free block
+			push(0, freeHeads.length - 1);
+		}
+
+		private void push(int index, int relOrder) {
+			int head = freeHeads[relOrder];
+			next[index] = head;
+			prev[index] = -1;
+			if (head != -1)
+				prev[head] = index;
+			freeHeads[relOrder] = index;
+			freeOrder[index] = (byte) (relOrder + 1);
+		}
+
+		private void unlink(int index, int relOrder) {
+			if (prev[index] != -1)
+				next[prev[index]] = next[index];
+			else
+				freeHeads[relOrder] = next[index];
+			if (next[index] != -1)
+				prev[next[index]] = prev[index];
+			freeOrder[index] = 0;
+		}
+
+		/**
+		 * @return the index of the allocated block, or -1 if there is no free
+		 * block large enough.
+		 */
+		public int allocate(int relOrder) {
+			int order = relOrder;
+			while (order < freeHeads.length && freeHeads[order] == -1)
+				order++;
+			if (order == freeHeads.length)
+				return -1;
+
+			int index = freeHeads[order];
+			unlink(index, order);
+			// split off the upper halves until we're down to the size we want
+			while (order > relOrder) {
+				order--;
+				push(index + (1 << order), order);
+			}
+			return index;
+		}
+
+		public void free(int index, int relOrder) {
+			while (relOrder < freeHeads.length - 1) {
+				int buddy = index ^ (1 << relOrder);
+				if (freeOrder[buddy] != relOrder + 1)
+					break;
+
+				unlink(buddy, relOrder);
+				index = Math.min(index, buddy);
+				relOrder++;
+			}
+			push(index, relOrder);
+		}
+
+		public int largestFreeOrder() {
+			for (int i = freeHeads.length - 1; i >= 0; i--)
+				if (freeHeads[i] != -1)
+					return i;
+			return -1;
+		}
+	}
+
+	private static class Magazine {
+		public final ByteBuffer[] rounds;
+		public int count;
+
+		public Magazine() {
+			rounds = new ByteBuffer[MAGAZINE_SIZE];
+		}
+	}
+
+	// only written by the owning thread. statistics read it without
+	// synchronization, so they are only approximate.
+	private static class ThreadCache {
+		public final Magazine[] magazines;
+		// weak, so that we don't keep a dead thread from being collected
+		public final WeakReference<Thread> owner;
+		public long takes, returns, takenBytes, requestedBytes;
+		private int random;
+
+		public ThreadCache(int sizeClasses) {
+			owner = new WeakReference<Thread>(Thread.currentThread());
+			magazines = new Magazine[sizeClasses];
+			for (int i = 0; i < sizeClasses; i++)
+				magazines[i] = new Magazine();
+			random = System.identityHashCode(this) | 1;
+		}
+
+		public boolean sample(int interval) {
+			// xorshift is plenty random for sampling and much cheaper than java.util.Random
+			random ^= random << 13;
+			random ^= random >>> 17;
+			random ^= random << 5;
+			return (random & Integer.MAX_VALUE) % interval == 0;
+		}
+	}
+
+	// doubles as an entry in our weak identity hash table of slices that are
+	// handed out. all fields besides the final ones are guarded by the BufferCache.
+	private static class Allocation extends WeakReference<ByteBuffer> {
+		public final Arena arena;
+		public final int index, relOrder, hash;
+		public Allocation next;
+		// where the slice was last taken, if that take was sampled
+		public Throwable sampledTake;
+
+		public Allocation(ByteBuffer slice, ReferenceQueue<ByteBuffer> queue, Arena arena, int index, int relOrder) {
+			super(slice, queue);
+			this.arena = arena;
+			this.index = index;
+			this.relOrder = relOrder;
+			hash = System.identityHashCode(slice);
+		}
+	}
 
-	private final Queue<ByteBuffer> available;
+	private static final int BATCH_SIZE = 16;
+	private static final int MAGAZINE_SIZE = BATCH_SIZE * 2;
+	// full batches per size class that the depot holds before giving them back to the arenas
+	private static final int DEPOT_SIZE = 32;
+	private static final double HIGH_PRESSURE_RATIO = 0.75;
+	private static final double CRITICAL_PRESSURE_RATIO = 0.95;
+	private static final int LEAK_DETECTION_INTERVAL = Integer.getInteger("natladder.leakDetectionInterval", 100).intValue();
+	// counts sampled takes that are outstanding by identity hash, so that most
+	// returns can tell that they weren't sampled without taking a lock.
+	private static final int SAMPLED_FILTER_SIZE = 1024;
+
+	private final int arenaSize, minOrder, maxOrder;
+	private final long maxPooledBytes;
+	private final List<Arena> arenas;
+	// ByteBuffer.equals() and hashCode() depend on contents, so look up by identity.
+	// IdentityHashMap would keep leaked slices from ever being collected.
+	private Allocation[] outstanding;
+	private int outstandingCount;
+	private final ReferenceQueue<ByteBuffer> collected;
+	private final AtomicIntegerArray sampledFilter;
+	private final Deque<ByteBuffer[]>[] depot;
+	// fewest batches that each depot size class held since the last trim().
+	// that many were never needed, so they're safe to give back.
+	private final int[] depotLowWater;
+	private final AtomicLong depotBytes;
+	private final ThreadLocal<ThreadCache> threadCache;
+	// caches of threads that may still be alive. also guards unlinking the dead ones.
+	private final List<ThreadCache> threadCaches;
+	// statistics of threads whose caches were reclaimed
+	private final AtomicLong retiredTakes, retiredReturns, retiredTakenBytes, retiredRequestedBytes;
+
+	private final AtomicLong rejectedReturns, unpooledTakes;
+	// bytes that are handed out of the arenas, including those cached in magazines and the depot
+	private long usedBytes;
+	private long releasedArenas, leaked;
+	// had to allocate outside of the pool since usage was last below HIGH
+	private boolean overflowed;
+	private volatile Pressure pressure;
+
+	/**
+	 * @param arenaSize the size of each direct region. must be a power of two.
+	 * @param minBlockSize the smallest slice to hand out. must be a power of two.
+	 * @param maxPooledBytes the most memory that all arenas together may take up.
+	 */
+	public BufferCache(int arenaSize, int minBlockSize, long maxPooledBytes) {
+		if (Integer.bitCount(arenaSize) != 1 || Integer.bitCount(minBlockSize) != 1 || minBlockSize > arenaSize)
+			throw new IllegalArgumentException("Arena size and minimum block size must be powers of two");
+		if (maxPooledBytes < arenaSize)
+			throw new IllegalArgumentException("Maximum pooled size must fit at least one arena");
+		// freeOrder stores orders in a byte
+		if (Integer.numberOfTrailingZeros(arenaSize) - Integer.numberOfTrailingZeros(minBlockSize) >= Byte.MAX_VALUE)
+			throw new IllegalArgumentException("Too many size classes");
+
+		this.arenaSize = arenaSize;
+		this.maxPooledBytes = maxPooledBytes;
+		minOrder = Integer.numberOfTrailingZeros(minBlockSize);
+		maxOrder = Integer.numberOfTrailingZeros(arenaSize);
+		arenas = new ArrayList<Arena>();
+		outstanding = new Allocation[64];
+		collected = new ReferenceQueue<ByteBuffer>();
+		sampledFilter = new AtomicIntegerArray(SAMPLED_FILTER_SIZE);
+		@SuppressWarnings("unchecked")
+		Deque<ByteBuffer[]>[] depot = new Deque[maxOrder - minOrder + 1];
+		for (int i = 0; i < depot.length; i++)
+			depot[i] = new ArrayDeque<ByteBuffer[]>();
+		this.depot = depot;
+		depotLowWater = new int[depot.length];
+		depotBytes = new AtomicLong(0);
+		threadCaches = new CopyOnWriteArrayList<ThreadCache>();
+		threadCache = new ThreadLocal<ThreadCache>() {
+			@Override
+			protected ThreadCache initialValue() {
+				// short-lived threads would otherwise pile up until the next trim()
+				reclaimThreadCaches();
+				ThreadCache cache = new ThreadCache(BufferCache.this.depot.length);
+				threadCaches.add(cache);
+				return cache;
+			}
+		};
+		retiredTakes = new AtomicLong(0);
+		retiredReturns = new AtomicLong(0);
+		retiredTakenBytes = new AtomicLong(0);
+		retiredRequestedBytes = new AtomicLong(0);
+		rejectedReturns = new AtomicLong(0);
+		unpooledTakes = new AtomicLong(0);
+		pressure = Pressure.NORMAL;
+	}
 
 	public BufferCache() {
-		available = new ConcurrentLinkedQueue<ByteBuffer>();
+		this(DEFAULT_ARENA_SIZE, DEFAULT_MIN_BLOCK_SIZE, DEFAULT_MAX_POOLED_BYTES);
 	}
 
-	private boolean isSatisfactory(ByteBuffer buf) {
-		return buf.position() == 0 && buf.remaining() == DEFAULT_BUFFER_SIZE && !buf.isReadOnly() && buf.isDirect();
+	private int relativeOrder(int minimumSize) {
+		int order = minimumSize <= 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(minimumSize - 1);
+		return Math.max(order, minOrder) - minOrder;
+	}
+
+	/**
+	 * @return a cleared slice of an arena with a capacity of at least
+	 * minimumSize, or null if the arenas can't hold it.
+	 */
+	private ByteBuffer takeBuffer(int minimumSize) {
+		if (minimumSize > arenaSize)
+			return null;
+
+		int relOrder = relativeOrder(minimumSize);
+		ThreadCache cache = threadCache.get();
+		Magazine magazine = cache.magazines[relOrder];
+		if (magazine.count == 0 && !refill(magazine, relOrder))
+			return null;
+		ByteBuffer buf = magazine.rounds[--magazine.count];
+		magazine.rounds[magazine.count] = null;
+		cache.takes++;
+		cache.takenBytes += buf.capacity();
+		cache.requestedBytes += minimumSize;
+		if (LEAK_DETECTION_INTERVAL > 0 && cache.sample(LEAK_DETECTION_INTERVAL))
+			recordTake(buf);
+		return buf;
+	}
+
+	private synchronized void recordTake(ByteBuffer buf) {
+		Allocation a = findAllocation(buf, false);
+		if (a == null || a.sampledTake != null)
+			// not from our arenas
+			return;
+
+		a.sampledTake = new Throwable("Buffer taken from cache");
+		sampledFilter.incrementAndGet(a.hash & (SAMPLED_FILTER_SIZE - 1));
+	}
+
+	private void recordReturn(ByteBuffer buf) {
+		int hash = System.identityHashCode(buf);
+		if (sampledFilter.get(hash & (SAMPLED_FILTER_SIZE - 1)) == 0)
+			return;
+
+		synchronized (this) {
+			Allocation a = findAllocation(buf, false);
+			if (a != null && a.sampledTake != null) {
+				a.sampledTake = null;
+				sampledFilter.decrementAndGet(hash & (SAMPLED_FILTER_SIZE - 1));
+			}
+		}
 	}
 
-	private void dispose(ByteBuffer buf) {
-		// no-op
+	/* package-private */ PooledBuffer takePooledBuffer() {
+		return takePooledBuffer(DEFAULT_BUFFER_SIZE, null);
 	}
 
-	private ByteBuffer instantiate() {
-		return ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+	/* package-private */ PooledBuffer takePooledBuffer(int minimumSize) {
+		return takePooledBuffer(minimumSize, null);
 	}
 
-	/* package-private */ ByteBuffer takeBuffer() {
-		ByteBuffer next = available.poll();
-		while (next != null && !isSatisfactory(next)) {
-			dispose(next);
-			next = available.poll();
+	/**
+	 * @param account charged for the buffer until its last reference is
+	 * released, or null if the caller doesn't need it attributed.
+	 * @return a cleared direct buffer with a capacity of at least minimumSize
+	 * and one reference, which is returned to us once its last reference is
+	 * released.
+	 */
+	/* package-private */ PooledBuffer takePooledBuffer(int minimumSize, BufferAccount account) {
+		ByteBuffer buf = takeBuffer(minimumSize);
+		if (buf == null) {
+			// don't fail the allocation. our callers should notice the pressure and back off.
+			// the buffer never comes back to us, since we wouldn't know what to do with it.
+			unpooledTakes.incrementAndGet();
+			return PooledBuffer.pooled(null, account, ByteBuffer.allocateDirect(minimumSize));
 		}
-		if (next == null)
-			next = instantiate();
-		return next;
+		return PooledBuffer.pooled(this, account, buf);
+	}
+
+	private boolean isSatisfactory(ByteBuffer buf) {
+		int capacity = buf.capacity();
+		return Integer.bitCount(capacity) == 1 && capacity >= 1 << minOrder && capacity <= arenaSize && !buf.isReadOnly() && buf.isDirect();
 	}
 
 	/**
-	 * Any one time bespoke length buffers will be rejected by this routine.
-	 * @param buf a buffer expected to be directly allocated and of size DEFAULT_BUFFER_SIZE.
+	 * Buffers that don't fit any size class will be rejected by this routine.
+	 * @param buf a slice that was returned by takeBuffer().
 	 * @return false if rejected, true is accepted.
 	 */
 	/* package-private */ boolean tryReturnBuffer(ByteBuffer buf) {
 		buf.clear();
-		if (!isSatisfactory(buf))
+		if (!isSatisfactory(buf)) {
+			rejectedReturns.incrementAndGet();
 			return false;
+		}
 
-		available.offer(buf);
+		if (LEAK_DETECTION_INTERVAL > 0)
+			recordReturn(buf);
+		int relOrder = Integer.numberOfTrailingZeros(buf.capacity()) - minOrder;
+		ThreadCache cache = threadCache.get();
+		Magazine magazine = cache.magazines[relOrder];
+		if (magazine.count == magazine.rounds.length)
+			flush(magazine, relOrder);
+		magazine.rounds[magazine.count++] = buf;
+		cache.returns++;
 		return true;
 	}
+
+	/**
+	 * @return false if the arenas are exhausted.
+	 */
+	private boolean refill(Magazine magazine, int relOrder) {
+		ByteBuffer[] batch;
+		synchronized (depot[relOrder]) {
+			batch = depot[relOrder].poll();
+			depotLowWater[relOrder] = Math.min(depotLowWater[relOrder], depot[relOrder].size());
+		}
+		if (batch != null)
+			depotBytes.addAndGet(-((long) batch.length << (relOrder + minOrder)));
+		else if ((batch = allocateBatch(relOrder)) == null)
+			return false;
+		System.arraycopy(batch, 0, magazine.rounds, 0, batch.length);
+		magazine.count = batch.length;
+		return true;
+	}
+
+	private void flush(Magazine magazine, int relOrder) {
+		// give away the least recently returned half. the rest are more likely to be warm in cache.
+		ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+		System.arraycopy(magazine.rounds, 0, batch, 0, BATCH_SIZE);
+		System.arraycopy(magazine.rounds, BATCH_SIZE, magazine.rounds, 0, magazine.count - BATCH_SIZE);
+		magazine.count -= BATCH_SIZE;
+		for (int i = magazine.count; i < magazine.rounds.length; i++)
+			magazine.rounds[i] = null;
+
+		synchronized (depot[relOrder]) {
+			if (depot[relOrder].size() < DEPOT_SIZE) {
+				depot[relOrder].push(batch);
+				depotBytes.addAndGet((long) batch.length << (relOrder + minOrder));
+				return;
+			}
+		}
+		freeBatch(batch);
+	}
+
+	/**
+	 * Gives the magazines of threads that have exited back to the depot, and
+	 * stops tracking those threads. Once a thread is no longer alive, nothing
+	 * else can touch its magazines.
+	 */
+	private void reclaimThreadCaches() {
+		List<ThreadCache> dead = null;
+		synchronized (threadCaches) {
+			for (ThreadCache cache : threadCaches) {
+				Thread owner = cache.owner.get();
+				if (owner == null || !owner.isAlive()) {
+					if (dead == null)
+						dead = new ArrayList<ThreadCache>();
+					dead.add(cache);
+				}
+			}
+			if (dead == null)
+				return;
+
+			// copies the list only once
+			threadCaches.removeAll(dead);
+		}
+
+		// we unlinked these, so nobody else will drain them. don't hold
+		// threadCaches while taking the depot and arena locks.
+		for (ThreadCache cache : dead) {
+			retiredTakes.addAndGet(cache.takes);
+			retiredReturns.addAndGet(cache.returns);
+			retiredTakenBytes.addAndGet(cache.takenBytes);
+			retiredRequestedBytes.addAndGet(cache.requestedBytes);
+			for (int i = 0; i < cache.magazines.length; i++)
+				drain(cache.magazines[i], i);
+		}
+	}
+
+	private void drain(Magazine magazine, int relOrder) {
+		while (magazine.count > 0) {
+			int length = Math.min(magazine.count, BATCH_SIZE);
+			ByteBuffer[] batch = new ByteBuffer[length];
+			magazine.count -= length;
+			System.arraycopy(magazine.rounds, magazine.count, batch, 0, length);
+			Arrays.fill(magazine.rounds, magazine.count, magazine.count + length, null);
+
+			synchronized (depot[relOrder]) {
+				if (depot[relOrder].size() < DEPOT_SIZE) {
+					depot[relOrder].push(batch);
+					depotBytes.addAndGet((long) length << (relOrder + minOrder));
+					continue;
+				}
+			}
+			freeBatch(batch);
+		}
+	}
+
+	// must be called while holding this
+	private Allocation findAllocation(ByteBuffer buf, boolean remove) {
+		int hash = System.identityHashCode(buf);
+		int bucket = hash & (outstanding.length - 1);
+		for (Allocation a = outstanding[bucket], prev = null; a != null; prev = a, a = a.next) {
+			if (a.get() == buf) {
+				if (remove)
+					unlinkAllocation(bucket, a, prev);
+				return a;
+			}
+		}
+		return null;
+	}
+
+	// must be called while holding this
+	private void unlinkAllocation(int bucket, Allocation a, Allocation prev) {
+		if (prev == null)
+			outstanding[bucket] = a.next;
+		else
+			prev.next = a.next;
+		a.next = null;
+		outstandingCount--;
+	}
+
+	// must be called while holding this
+	private void addAllocation(Allocation a) {
+		if (outstandingCount >= outstanding.length * 3 / 4) {
+			Allocation[] old = outstanding;
+			outstanding = new Allocation[old.length * 2];
+			for (Allocation head : old) {
+				for (Allocation e = head, next; e != null; e = next) {
+					next = e.next;
+					int bucket = e.hash & (outstanding.length - 1);
+					e.next = outstanding[bucket];
+					outstanding[bucket] = e;
+				}
+			}
+		}
+		int bucket = a.hash & (outstanding.length - 1);
+		a.next = outstanding[bucket];
+		outstanding[bucket] = a;
+		outstandingCount++;
+	}
+
+	// must be called while holding this
+	private void reclaimLeaked() {
+		Allocation a;
+		while ((a = (Allocation) collected.poll()) != null) {
+			int bucket = a.hash & (outstanding.length - 1);
+			Allocation e = outstanding[bucket], prev = null;
+			while (e != null && e != a) {
+				prev = e;
+				e = e.next;
+			}
+			if (e == null)
+				// returned properly before it was collected
+				continue;
+
+			unlinkAllocation(bucket, a, prev);
+			a.arena.free(a.index, a.relOrder);
+			usedBytes -= 1 << (a.relOrder + minOrder);
+			leaked++;
+			if (a.sampledTake != null) {
+				sampledFilter.decrementAndGet(a.hash & (SAMPLED_FILTER_SIZE - 1));
+				LOG.log(Level.WARNING, "Buffer was garbage collected without being returned to the cache", a.sampledTake);
+			}
+		}
+	}
+
+	/**
+	 * @return null if not even one slice is left.
+	 */
+	private synchronized ByteBuffer[] allocateBatch(int relOrder) {
+		reclaimLeaked();
+		ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+		for (int i = 0; i < batch.length; i++) {
+			Arena arena = null;
+			int index = -1;
+			for (int j = 0; j < arenas.size() && index == -1; j++)
+				index = (arena = arenas.get(j)).allocate(relOrder);
+			if (index == -1) {
+				if ((long) (arenas.size() + 1) * arenaSize > maxPooledBytes) {
+					if (i != 0)
+						// make do with what we could get
+						return Arrays.copyOf(batch, i);
+
+					overflowed = true;
+					updatePressure();
+					return null;
+				}
+				arena = new Arena(arenaSize, minOrder, maxOrder);
+				arenas.add(arena);
+				index = arena.allocate(relOrder);
+			}
+
+			ByteBuffer dup = arena.memory.duplicate();
+			dup.position(index << minOrder).limit((index << minOrder) + (1 << (relOrder + minOrder)));
+			batch[i] = dup.slice();
+			addAllocation(new Allocation(batch[i], collected, arena, index, relOrder));
+			usedBytes += batch[i].capacity();
+		}
+		updatePressure();
+		return batch;
+	}
+
+	private synchronized void freeBatch(ByteBuffer[] batch) {
+		for (ByteBuffer buf : batch) {
+			Allocation a = findAllocation(buf, true);
+			if (a == null) {
+				// only our own slices should ever get here, since unpooled
+				// buffers aren't returned to us. don't let it corrupt an arena.
+				rejectedReturns.incrementAndGet();
+				continue;
+			}
+
+			// we still hold buf, so it can't have been enqueued yet. make sure it never will be.
+			a.clear();
+			a.arena.free(a.index, a.relOrder);
+			usedBytes -= buf.capacity();
+		}
+		updatePressure();
+	}
+
+	// must be called while holding this
+	private void updatePressure() {
+		// slices parked in the depot can be given back at any time, so they don't count
+		long inUse = usedBytes - depotBytes.get();
+		if (inUse < maxPooledBytes * HIGH_PRESSURE_RATIO)
+			overflowed = false;
+
+		Pressure old = pressure;
+		if (overflowed || inUse >= maxPooledBytes * CRITICAL_PRESSURE_RATIO)
+			pressure = Pressure.CRITICAL;
+		else if (inUse >= maxPooledBytes * HIGH_PRESSURE_RATIO)
+			pressure = Pressure.HIGH;
+		else
+			pressure = Pressure.NORMAL;
+		if (pressure != old)
+			// only what we already hold. toString() would take other locks while we hold this.
+			LOG.log(pressure == Pressure.CRITICAL ? Level.WARNING : Level.INFO, "Buffer cache pressure changed from {0} to {1} ({2}KB of {3}KB in use)", new Object[] { old, pressure, Long.valueOf(inUse / 1024), Long.valueOf(maxPooledBytes / 1024) });
+	}
+
+	public Pressure getPressure() {
+		return pressure;
+	}
+
+	/**
+	 * Give back batches that sat in the depot since the last trim, or all of
+	 * them if we're under pressure, and then drop arenas that are entirely
+	 * free. Direct memory of a dropped arena is freed once it is garbage
+	 * collected. Slices cached in the magazines of live threads are left
+	 * alone, since only their own threads may touch them. Those of threads
+	 * that have exited go back to the depot first.
+	 */
+	public void trim() {
+		reclaimThreadCaches();
+		boolean underPressure = (pressure != Pressure.NORMAL);
+		List<ByteBuffer[]> idle = new ArrayList<ByteBuffer[]>();
+		for (int i = 0; i < depot.length; i++) {
+			synchronized (depot[i]) {
+				int excess = underPressure ? depot[i].size() : Math.min(depotLowWater[i], depot[i].size());
+				for (int j = 0; j < excess; j++)
+					// flush() pushes to the head, so the tail is least recently used
+					idle.add(depot[i].removeLast());
+				depotLowWater[i] = depot[i].size();
+			}
+			for (ByteBuffer[] batch : idle) {
+				depotBytes.addAndGet(-((long) batch.length << (i + minOrder)));
+				freeBatch(batch);
+			}
+			idle.clear();
+		}
+
+		synchronized (this) {
+			reclaimLeaked();
+			// keep one arena around so that steady light traffic doesn't churn
+			for (int i = arenas.size() - 1; i >= 0 && arenas.size() > 1; i--) {
+				if (arenas.get(i).largestFreeOrder() == maxOrder - minOrder) {
+					arenas.remove(i);
+					releasedArenas++;
+				}
+			}
+			updatePressure();
+		}
+	}
+
+	public synchronized long getArenaBytes() {
+		return (long) arenas.size() * arenaSize;
+	}
+
+	/**
+	 * @return the number of slices that were garbage collected without being
+	 * returned.
+	 */
+	public synchronized long getLeakedCount() {
+		return leaked;
+	}
+
+	/**
+	 * @return the total capacity of all slices carved out of the arenas,
+	 * including the ones that are cached in magazines or the depot.
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return the approximate capacity of slices that are cached in magazines
+	 * or the depot, ready to be taken without going to the arenas.
+	 */
+	public long getCachedBytes() {
+		long cached = depotBytes.get();
+		for (ThreadCache cache : threadCaches)
+			for (int i = 0; i < cache.magazines.length; i++)
+				cached += (long) cache.magazines[i].count << (i + minOrder);
+		return cached;
+	}
+
+	/**
+	 * @return the approximate fraction of all bytes ever taken that were
+	 * wasted by rounding requests up to a power of two, in [0, 1].
+	 */
+	public double getInternalFragmentation() {
+		long taken = retiredTakenBytes.get(), requested = retiredRequestedBytes.get();
+		for (ThreadCache cache : threadCaches) {
+			taken += cache.takenBytes;
+			requested += cache.requestedBytes;
+		}
+		return taken == 0 ? 0 : 1 - (double) requested / taken;
+	}
+
+	/**
+	 * @return the size of the largest slice that could be taken without
+	 * allocating a new arena.
+	 */
+	public synchronized int getLargestFreeBlock() {
+		int largest = -1;
+		for (Arena arena : arenas)
+			largest = Math.max(largest, arena.largestFreeOrder());
+		return largest == -1 ? 0 : 1 << (largest + minOrder);
+	}
+
+	/**
+	 * @return the fraction of free arena memory that isn't part of the single
+	 * largest free block, in [0, 1]. 0 means that free memory is not
+	 * fragmented at all.
+	 */
+	public synchronized double getExternalFragmentation() {
+		long free = getArenaBytes() - usedBytes;
+		return free == 0 ? 0 : 1 - (double) getLargestFreeBlock() / free;
+	}
+
+	@Override
+	public String toString() {
+		long takes = retiredTakes.get(), returns = retiredReturns.get();
+		for (ThreadCache cache : threadCaches) {
+			takes += cache.takes;
+			returns += cache.returns;
+		}
+		int arenaCount;
+		long used, released, leakedCount;
+		synchronized (this) {
+			arenaCount = arenas.size();
+			used = usedBytes;
+			released = releasedArenas;
+			leakedCount = leaked;
+		}
+		return "pressure=" + pressure
+			+ ", arenas=" + arenaCount + "x" + (arenaSize / 1024) + "KB"
+			+ ", releasedArenas=" + released
+			+ ", used=" + (used / 1024) + "KB"
+			+ ", cached=" + (getCachedBytes() / 1024) + "KB"
+			+ ", internalFragmentation=" + Math.round(getInternalFragmentation() * 100) + "%"
+			+ ", largestFree=" + (getLargestFreeBlock() / 1024) + "KB"
+			+ ", externalFragmentation=" + Math.round(getExternalFragmentation() * 100) + "%"
+			+ ", takes=" + takes + ", returns=" + returns
+			+ ", rejectedReturns=" + rejectedReturns.get() + ", unpooledTakes=" + unpooledTakes.get()
+			+ ", leaked=" + leakedCount;
+	}
 }
@@ -3,6 +3,8 @@ package in.kevinj.natladder.common.netimpl;
 import in.kevinj.natladder.common.model.LocalRouter;
 import in.kevinj.natladder.common.model.RemoteNode;
 import in.kevinj.natladder.common.model.SessionType;
+import in.kevinj.natladder.common.util.LatencyStats;
+import in.kevinj.natladder.common.util.ScheduledHashedWheelExecutor;
 
 import java.io.IOException;
 import java.net.ConnectException;
@@ -20,63 +22,311 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager<T> {
 	private static final Logger LOG = Logger.getLogger(ClientManagerNio.class.getName());
+	// how often to check whether sessions paused by memory pressure may read again
+	private static final long MEMORY_PRESSURE_RECHECK = 100; //in milliseconds
+	// how often to look for relay links that have gone quiet
+	private static final long IDLE_SWEEP_INTERVAL = 1000; //in milliseconds
+	// for EventLoopOptions.timerInEventLoop. same coverage as LocalRouter's wheel.
+	private static final int EVENT_LOOP_TIMER_BUCKETS = 512, EVENT_LOOP_TIMER_LEVELS = 2;
+	private static final long EVENT_LOOP_TIMER_TICK = 100; //in milliseconds
+	// how many more times per select iteration to go back to sessions that ran
+	// out of read budget, before we let select() pick up everything else
+	private static final int MAX_READ_ROUNDS = 4;
+	// for EventLoopOptions.busyPollMicros. how many empty selectNow()s to spin
+	// through, then to yield after, before we start parking between them. like
+	// the JDK's own spin waits, don't spin at all if we'd only be holding up
+	// the thread that's about to give us something to do.
+	private static final int BUSY_POLL_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 128 : 0, BUSY_POLL_YIELDS = 128;
+	private static final long BUSY_POLL_PARK = 10000; //in nanoseconds
 
-	private final ExecutorService eventLoopThreadPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+	private static class EventLoopThreadFactory implements ThreadFactory {
 		private final ThreadGroup group;
+		private final AtomicInteger threadNumber;
+		private final String name;
+		private final boolean numbered;
 
-		{
+		public EventLoopThreadFactory(String name, boolean numbered) {
 			SecurityManager s = System.getSecurityManager();
 			group = (s != null)? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
+			threadNumber = new AtomicInteger(0);
+			this.name = name;
+			this.numbered = numbered;
 		}
 
 		@Override
 		public Thread newThread(Runnable r) {
-			Thread t = new Thread(group, r, "event-loop-thread", 0);
+			Thread t = new Thread(group, r, numbered ? name + "-" + threadNumber.getAndIncrement() : name, 0);
 			if (t.isDaemon())
 				t.setDaemon(false);
 			if (t.getPriority() != Thread.NORM_PRIORITY)
 				t.setPriority(Thread.NORM_PRIORITY);
 			return t;
 		}
-	});
+	}
+
+	private class HandedOffClient {
+		public final SocketChannel client;
+		public final RemoteNode.RemoteNodeFactory<T> clientMaker;
+		public final Map<String, Object> properties;
+		public final boolean accepted;
+		public final long readyAt;
+		public final long queuedAt;
+
+		public HandedOffClient(SocketChannel client, RemoteNode.RemoteNodeFactory<T> clientMaker, Map<String, Object> properties, boolean accepted, long readyAt) {
+			this.client = client;
+			this.clientMaker = clientMaker;
+			this.properties = properties;
+			this.accepted = accepted;
+			this.readyAt = readyAt;
+			this.queuedAt = System.nanoTime();
+		}
+	}
+
+	// what a ready key means to an event loop. one is attached to every key
+	// we register, so that dispatching a ready key is a single virtual call.
+	private static abstract class KeyHandler {
+		public abstract void ready(SelectionKey key) throws IOException;
+
+		// who to blame if ready() throws
+		public abstract Object source();
+	}
+
+	private static class QueuedTask {
+		public final Runnable task;
+		public final long queuedAt;
+
+		public QueuedTask(Runnable task) {
+			this.task = task;
+			this.queuedAt = System.nanoTime();
+		}
+	}
 
-	// TODO: round robin new connections to a set of selectors running
-	// on different threads for handling reading and writing in parallel
-	// while still keeping allowing some ClientSession code to not be thread-safe.
+	// each EventLoopTask owns a selector running on its own thread. new
+	// connections are round robined across the set of selectors so that
+	// reading and writing is done in parallel while still allowing ClientSession
+	// code to not be thread-safe: a session is only ever processed by the
+	// EventLoopTask that it was registered with.
 	private class EventLoopTask implements Runnable {
-		private Selector selector;
+		private final boolean isAcceptor;
+		private volatile Selector selector;
+		private volatile Thread thread;
+		private volatile boolean closed;
+		private long lastSelected;
+		// when select() last found us something to do, for busy polling
+		private long lastActive;
+		// null if the selector's own selected key set has to be used
+		private SelectedKeySet readyKeys;
+		// only kept for cleanupAll(). keys are dispatched through their attachment.
 		private final Map<SelectionKey, ServerSocketChannel> listeners;
 		private final Map<SelectionKey, SocketChannel> pendingConnections;
-		private final Map<SelectionKey, RemoteNode.RemoteNodeFactory<T>> clientMakers;
-		private final Map<SelectionKey, Map<String, Object>> newConnectionProps;
-		private final List<Runnable> runInEventLoop;
+		// any thread may add to these, but only our thread takes from them
+		private final Queue<QueuedTask> runInEventLoop;
+		private final Queue<HandedOffClient> handedOff;
+		// set by the first wakeup() after we last went back to select(), so
+		// that everyone else who wants our attention can skip the syscall
+		private final AtomicBoolean wakeupPending;
+		private final AtomicLong wakeups, coalescedWakeups;
+		// sessions close from any thread. ready keys find theirs through the attachment.
+		private final Map<SelectionKey, ClientSessionNio<T>> connected;
+		// sessions we stopped reading from because the buffer cache ran low
+		private final List<ClientSessionNio<T>> memorySuspended;
+		// sessions that used up their read budget with more left to read
+		private List<SessionHandler> readAgain, readAgainSpare;
+		// control links for the idle sweep
+		private final Set<ClientSessionNio<T>> keptAlive;
+		// null if sessions use the local node's timer thread
+		private final ScheduledHashedWheelExecutor timer;
 
-		public EventLoopTask() {
+		public EventLoopTask(boolean isAcceptor, boolean ownTimer) {
+			this.isAcceptor = isAcceptor;
 			listeners = new HashMap<SelectionKey, ServerSocketChannel>();
 			pendingConnections = new HashMap<SelectionKey, SocketChannel>();
-			newConnectionProps = new HashMap<SelectionKey, Map<String, Object>>();
-			clientMakers = new HashMap<SelectionKey, RemoteNode.RemoteNodeFactory<T>>();
-			runInEventLoop = new ArrayList<Runnable>();
+			runInEventLoop = new ConcurrentLinkedQueue<QueuedTask>();
+			handedOff = new ConcurrentLinkedQueue<HandedOffClient>();
+			wakeupPending = new AtomicBoolean(false);
+			wakeups = new AtomicLong(0);
+			coalescedWakeups = new AtomicLong(0);
+			connected = new ConcurrentHashMap<SelectionKey, ClientSessionNio<T>>();
+			memorySuspended = new ArrayList<ClientSessionNio<T>>();
+			readAgain = new ArrayList<SessionHandler>();
+			readAgainSpare = new ArrayList<SessionHandler>();
+			keptAlive = Collections.newSetFromMap(new ConcurrentHashMap<ClientSessionNio<T>, Boolean>());
+			if (ownTimer) {
+				timer = new ScheduledHashedWheelExecutor(EVENT_LOOP_TIMER_BUCKETS, EVENT_LOOP_TIMER_LEVELS, EVENT_LOOP_TIMER_TICK, TimeUnit.MILLISECONDS, null, new Runnable() {
+					@Override
+					public void run() {
+						// we may be blocked in select() without a timeout, or
+						// with one that runs past when the new task is due
+						wakeup();
+					}
+				});
+				timer.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						checkIdle(System.nanoTime());
+					}
+				}, IDLE_SWEEP_INTERVAL, IDLE_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+			} else {
+				timer = null;
+			}
+		}
+
+		private class AcceptHandler extends KeyHandler {
+			private final ServerSocketChannel listener;
+			private final RemoteNode.RemoteNodeFactory<T> clientMaker;
+			private final Map<String, Object> properties;
+
+			public AcceptHandler(ServerSocketChannel listener, RemoteNode.RemoteNodeFactory<T> clientMaker, Map<String, Object> properties) {
+				this.listener = listener;
+				this.clientMaker = clientMaker;
+				this.properties = properties;
+			}
+
+			@Override
+			public void ready(SelectionKey key) throws IOException {
+				if (key.isValid() && key.isAcceptable())
+					acceptClients(listener, clientMaker, properties);
+			}
+
+			@Override
+			public Object source() {
+				return listener.socket().getLocalSocketAddress();
+			}
+		}
+
+		private class ConnectHandler extends KeyHandler {
+			private final SocketChannel socket;
+			private final RemoteNode.RemoteNodeFactory<T> clientMaker;
+			private final Map<String, Object> properties;
+
+			public ConnectHandler(SocketChannel socket, RemoteNode.RemoteNodeFactory<T> clientMaker, Map<String, Object> properties) {
+				this.socket = socket;
+				this.clientMaker = clientMaker;
+				this.properties = properties;
+			}
+
+			@Override
+			public void ready(SelectionKey key) throws IOException {
+				if (!key.isValid() || !key.isConnectable())
+					return;
+
+				try {
+					if (socket.isConnectionPending() && !socket.finishConnect())
+						return;
+				} catch (ConnectException ex) {
+					pendingConnections.remove(key);
+					SessionType sessionType = clientMaker.typeToMake();
+					if (sessionType == null)
+						throw new IllegalStateException("Invalid session type " + sessionType);
+					model.onConnectFailed(sessionType, properties, ex);
+					return;
+				}
+				pendingConnections.remove(key);
+				handOff(socket, clientMaker, properties, false);
+			}
+
+			@Override
+			public Object source() {
+				return socket.socket().getRemoteSocketAddress();
+			}
+		}
+
+		private class SessionHandler extends KeyHandler {
+			private final SelectionKey key;
+			private final SocketChannel client;
+			private final ClientSessionNio<T> session;
+
+			public SessionHandler(SelectionKey key, SocketChannel client, ClientSessionNio<T> session) {
+				this.key = key;
+				this.client = client;
+				this.session = session;
+			}
+
+			@Override
+			public void ready(SelectionKey key) {
+				// if another thread closed the session, the key was cancelled
+				if (key.isValid() && key.isReadable() && readForClient(client, session))
+					readAgain.add(this);
+				if (key.isValid() && key.isWritable())
+					writeForClient(client, session, key);
+			}
+
+			public void readAgain() {
+				if (key.isValid() && !session.isReadSuspended() && readForClient(client, session))
+					readAgain.add(this);
+			}
+
+			@Override
+			public Object source() {
+				return session.getModel().getRemoteTypeString();
+			}
+		}
+
+		public void checkIdle(long now) {
+			for (ClientSessionNio<T> session : keptAlive)
+				session.checkIdle(now);
+		}
+
+		/**
+		 * Makes sure that we notice new tasks or interest ops that were added
+		 * before this call, without a syscall if someone already woke us up
+		 * since we last went back to select(). A call from our own thread is
+		 * free, since we'll pick everything up before we select() again.
+		 */
+		public void wakeup() {
+			if (Thread.currentThread() == thread)
+				return;
+
+			if (!wakeupPending.compareAndSet(false, true)) {
+				coalescedWakeups.incrementAndGet();
+				return;
+			}
+			Selector s = selector;
+			if (s != null) {
+				wakeups.incrementAndGet();
+				s.wakeup();
+			}
 		}
 
 		// see http://stackoverflow.com/q/3189153/444402. to reduce the headache,
 		// just wakeup the selector thread when we want to register channels
-		private void invokeLater(Runnable r) {
-			synchronized (runInEventLoop) {
-				runInEventLoop.add(r);
-				if (selector != null)
-					selector.wakeup();
+		private boolean invokeLater(Runnable r) {
+			if (closed)
+				return false;
+
+			runInEventLoop.offer(new QueuedTask(r));
+			if (closed) {
+				// cleanupAll() may have already drained runInEventLoop
+				runInEventLoop.clear();
+				return false;
+			}
+			wakeup();
+			return true;
+		}
+
+		private void runQueuedTasks() {
+			QueuedTask queued;
+			while ((queued = runInEventLoop.poll()) != null) {
+				taskLatency.record(System.nanoTime() - queued.queuedAt);
+				queued.task.run();
 			}
 		}
 
@@ -84,12 +334,9 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 			invokeLater(new Runnable() {
 				@Override
 				public void run() {
-					SelectionKey key;
 					try {
-						key = socket.register(selector, SelectionKey.OP_CONNECT);
-						clientMakers.put(key, clientMaker);
+						SelectionKey key = socket.register(selector, SelectionKey.OP_CONNECT, new ConnectHandler(socket, clientMaker, properties != null ? properties : Collections.<String, Object>emptyMap()));
 						pendingConnections.put(key, socket);
-						newConnectionProps.put(key, properties != null ? properties : Collections.<String, Object>emptyMap());
 						LOG.log(Level.INFO, "Connecting to {0}", address);
 					} catch (ClosedChannelException ex) {
 						close("Could not connect to " + address, ex);
@@ -103,10 +350,8 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 				@Override
 				public void run() {
 					try {
-						SelectionKey key = socket.register(selector, SelectionKey.OP_ACCEPT);
-						clientMakers.put(key, clientMaker);
+						SelectionKey key = socket.register(selector, SelectionKey.OP_ACCEPT, new AcceptHandler(socket, clientMaker, properties != null ? properties : Collections.<String, Object>emptyMap()));
 						listeners.put(key, socket);
-						newConnectionProps.put(key, properties != null ? properties : Collections.<String, Object>emptyMap());
 						LOG.log(Level.INFO, "Listening on {0}", address);
 					} catch (ClosedChannelException ex) {
 						close("Could not bind on " + address, ex);
@@ -115,6 +360,58 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 			});
 		}
 
+		public void addClient(HandedOffClient newClient) {
+			handedOff.offer(newClient);
+			if (closed) {
+				// cleanupAll() may have already drained handedOff
+				closeHandedOff();
+			} else {
+				wakeup();
+			}
+		}
+
+		private void closeHandedOff() {
+			HandedOffClient newClient;
+			while ((newClient = handedOff.poll()) != null) {
+				try {
+					newClient.client.close();
+				} catch (IOException ex) {
+					LOG.log(Level.WARNING, "Error while terminating new connection at " + newClient.client.socket().getRemoteSocketAddress(), ex);
+				}
+			}
+		}
+
+		private void registerHandedOff() {
+			HandedOffClient newClient;
+			while ((newClient = handedOff.poll()) != null) {
+				taskLatency.record(System.nanoTime() - newClient.queuedAt);
+				try {
+					if (registerNewClient(newClient.client, newClient.clientMaker, newClient.properties) != null && newClient.accepted)
+						acceptLatency.record(System.nanoTime() - newClient.readyAt);
+				} catch (Throwable ex) {
+					// the show must go on. don't let any single connection spoil our event loop.
+					LOG.log(Level.WARNING, "Error while registering connection from " + newClient.client.socket().getRemoteSocketAddress(), ex);
+				}
+			}
+		}
+
+		private ClientSessionNio<T> handOff(SocketChannel client, RemoteNode.RemoteNodeFactory<T> clientMaker, Map<String, Object> properties, boolean accepted) {
+			EventLoopTask owner = accepted || isAcceptor ? nextEventLoop() : this;
+			if (owner == this) {
+				ClientSessionNio<T> session = registerNewClient(client, clientMaker, properties);
+				if (session != null && accepted)
+					acceptLatency.record(System.nanoTime() - lastSelected);
+				return session;
+			}
+
+			// hand the new connection off to the selector that will own it
+			SelectionKey key = client.keyFor(selector);
+			if (key != null)
+				key.cancel();
+			owner.addClient(new HandedOffClient(client, clientMaker, properties, accepted, lastSelected));
+			return null;
+		}
+
 		public void closeSelector() {
 			invokeLater(new Runnable() {
 				@Override
@@ -128,20 +425,30 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 			});
 		}
 
-		private ClientSessionNio<T> registerNewClient(SocketChannel client, final Map<SelectionKey, ClientSessionNio<T>> connected, RemoteNode.RemoteNodeFactory<T> clientMaker, Map<String, Object> properties) {
+		private ClientSessionNio<T> registerNewClient(SocketChannel client, RemoteNode.RemoteNodeFactory<T> clientMaker, Map<String, Object> properties) {
 			try {
 				client.socket().setTcpNoDelay(true);
 				client.configureBlocking(false);
 				final SelectionKey acceptedKey = client.register(selector, SelectionKey.OP_READ);
 				RemoteNode<T> clientState = clientMaker.make(model);
-				ClientSessionNio<T> session = new ClientSessionNio<T>(clientState, client, acceptedKey, new Runnable() {
+				ClientSessionNio<T> session = new ClientSessionNio<T>(clientState, client, acceptedKey, sendQueueHighWatermark, sendQueueLowWatermark, timer, new Runnable() {
+					@Override
+					public void run() {
+						wakeup();
+					}
+				}, new Runnable() {
 					@Override
 					public void run() {
-						connected.remove(acceptedKey);
+						ClientSessionNio<T> closed = connected.remove(acceptedKey);
+						if (closed != null)
+							keptAlive.remove(closed);
 					}
 				});
 				clientState.setClientSession(session);
+				acceptedKey.attach(new SessionHandler(acceptedKey, client, session));
 				connected.put(acceptedKey, session);
+				if (session.isKeptAlive())
+					keptAlive.add(session);
 
 				clientState.onConnected(properties);
 				return session;
@@ -152,34 +459,203 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 			}
 		}
 
-		private void readForClient(SocketChannel client, ClientSessionNio<T> session) {
+		private void acceptClients(ServerSocketChannel listener, RemoteNode.RemoteNodeFactory<T> clientMaker, Map<String, Object> properties) throws IOException {
+			// during a reconnect storm, take as much off the backlog as we can
+			// before the kernel starts dropping SYNs. the cap keeps established
+			// sessions on this loop from waiting too long for their turn.
+			for (int i = 0; i < maxAcceptsPerSelect; i++) {
+				SocketChannel client = listener.accept();
+				if (client == null)
+					// backlog is empty, or readiness was spurious
+					return;
+				if (model.getBufferCache().getPressure() == BufferCache.Pressure.CRITICAL) {
+					// shed new load rather than run out of direct memory on the sessions we have
+					LOG.log(Level.WARNING, "Refused connection from {0} (buffer cache under critical pressure)", client.socket().getRemoteSocketAddress());
+					client.close();
+					continue;
+				}
+
+				handOff(client, clientMaker, properties, true);
+			}
+		}
+
+		/**
+		 * @return true if we stopped because session used up its read budget,
+		 * and it probably has more for us.
+		 */
+		private boolean readForClient(SocketChannel client, ClientSessionNio<T> session) {
+			if (session.getModel().forwardRaw() && model.getBufferCache().getPressure() == BufferCache.Pressure.CRITICAL) {
+				// every read from a terminus takes another buffer. relay links keep
+				// reading, since they carry the PIPE_CREDITs and traffic that drain us.
+				session.suspendReads(ClientSession.READ_SUSPENDED_MEMORY);
+				memorySuspended.add(session);
+				return false;
+			}
+
+			if (!session.beginRead())
+				// closed by another thread
+				return false;
+
+			// one timestamp per readiness event is plenty for idle detection
+			session.markActive(lastSelected);
 			try {
 				int read = client.read(session.readBuffer());
-				while (session.readMessage(read)) {
+				int budget = readBudget - Math.max(read, 0);
+				while (session.readMessage(read) && !session.isReadSuspended()) {
+					if (budget <= 0)
+						// give the other ready sessions a turn before a bulk sender gets another
+						return true;
+
 					// possibly just read only part of the packet:
 					// try more non-blocking reads in case we have more
 					read = client.read(session.readBuffer());
+					budget -= Math.max(read, 0);
 				}
 			} catch (IOException ex) {
 				//does an IOException in read always mean an invalid channel?
 				session.close(ex.getMessage());
+			} finally {
+				session.endRead();
 			}
+			return false;
+		}
+
+		private void readAgain() {
+			for (int round = 0; round < MAX_READ_ROUNDS && !readAgain.isEmpty(); round++) {
+				List<SessionHandler> handlers = readAgain;
+				readAgain = readAgainSpare;
+				readAgainSpare = handlers;
+				for (int i = 0; i < handlers.size(); i++) {
+					SessionHandler handler = handlers.get(i);
+					try {
+						handler.readAgain();
+					} catch (CancelledKeyException e) {
+						// don't worry about it - session is already closed
+					} catch (Throwable ex) {
+						// the show must go on. don't let any single session spoil our event loop.
+						LOG.log(Level.WARNING, "Error while processing packet from " + handler.source(), ex);
+					}
+				}
+				handlers.clear();
+			}
+			// anything left is still readable, so the next select() won't block
+			readAgain.clear();
 		}
 
 		private void writeForClient(SocketChannel client, ClientSessionNio<T> session, SelectionKey key) {
-			if (session.tryFlushSendQueue() == 1)
-				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (session.tryFlushSendQueue() == 1) {
+				session.updateInterestOps(0, SelectionKey.OP_WRITE);
+				// another thread may have failed to flush and asked for OP_WRITE just
+				// before we cleared it, so make sure nothing was left behind.
+				if (session.tryFlushSendQueue() == 0)
+					session.updateInterestOps(SelectionKey.OP_WRITE, 0);
+			}
 		}
 
-		private void cleanupAll(Map<SelectionKey, ClientSessionNio<T>> connected) {
-			synchronized (runInEventLoop) {
-				selector = null;
+		private void resumeMemorySuspended() {
+			if (memorySuspended.isEmpty() || model.getBufferCache().getPressure() == BufferCache.Pressure.CRITICAL)
+				return;
+
+			for (ClientSessionNio<T> session : memorySuspended)
+				session.resumeReads(ClientSession.READ_SUSPENDED_MEMORY);
+			memorySuspended.clear();
+		}
+
+		/**
+		 * Spins on selectNow() until something turns up, or until
+		 * busyPollNanos have passed since we were last active. The longer it
+		 * stays quiet, the more we back off so that other threads can run.
+		 * @return true if a key became ready or work was queued for us.
+		 */
+		private boolean busyPoll() throws IOException {
+			// we check the queues ourselves, so nobody has to pay for a Selector.wakeup()
+			wakeupPending.set(true);
+			long deadline = lastActive + busyPollNanos;
+			for (int polls = 0; System.nanoTime() - deadline < 0; polls++) {
+				if (selector.selectNow() > 0 || !runInEventLoop.isEmpty() || !handedOff.isEmpty() || timer != null && timer.nanosUntilNextTick() == 0)
+					return true;
+
+				if (polls >= BUSY_POLL_SPINS + BUSY_POLL_YIELDS)
+					LockSupport.parkNanos(BUSY_POLL_PARK);
+				else if (polls >= BUSY_POLL_SPINS)
+					Thread.yield();
 			}
+			return false;
+		}
+
+		/**
+		 * @return true if a key became ready or work was queued for us.
+		 */
+		private boolean select() throws IOException {
+			if (busyPollNanos > 0 && System.nanoTime() - lastActive < busyPollNanos && busyPoll())
+				return true;
+
+			// anyone who queues work after this point has to wake us up again
+			wakeupPending.set(false);
+			if (!runInEventLoop.isEmpty() || !handedOff.isEmpty()) {
+				// queued before we cleared the flag, so nobody will wake us up for it
+				selector.selectNow();
+				return true;
+			}
+
+			// in milliseconds, or 0 to block until woken up
+			long timeout = memorySuspended.isEmpty() ? 0 : MEMORY_PRESSURE_RECHECK;
+			if (timer != null) {
+				long untilTick = timer.nanosUntilNextTick();
+				if (untilTick == 0)
+					return selector.selectNow() > 0;
+				if (untilTick > 0) {
+					// round up, or we'd just spin until the tick is due
+					long untilTickMillis = TimeUnit.NANOSECONDS.toMillis(untilTick + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+					timeout = timeout == 0 ? untilTickMillis : Math.min(timeout, untilTickMillis);
+				}
+			}
+			if (timeout == 0)
+				return selector.select() > 0;
+			else
+				// nobody will wake us up once pressure goes down or a tick is due
+				return selector.select(timeout) > 0;
+		}
+
+		private void processKey(SelectionKey key) {
+			Object attachment = key.attachment();
+			if (!(attachment instanceof KeyHandler)) {
+				close("Network event selector was manipulated outside of connect() and listen()", null);
+				return;
+			}
+
+			KeyHandler handler = (KeyHandler) attachment;
+			try {
+				handler.ready(key);
+			} catch (CancelledKeyException e) {
+				// don't worry about it - session is already closed
+			} catch (Throwable ex) {
+				// the show must go on. don't let any single iteration spoil our event loop.
+				Object source = handler.source();
+				if (source != null)
+					LOG.log(Level.WARNING, "Error while processing packet from " + source, ex);
+				else
+					LOG.log(Level.WARNING, "Error while processing packet", ex);
+			}
+		}
+
+		private void cleanupAll() {
+			Selector s = selector;
+			selector = null;
+			// invokeLater() and addClient() will clean up after themselves from now on
+			closed = true;
+			runInEventLoop.clear();
+			closeHandedOff();
 			for (Iterator<Map.Entry<SelectionKey, ClientSessionNio<T>>> iter = connected.entrySet().iterator(); iter.hasNext(); ) {
 				Map.Entry<SelectionKey, ClientSessionNio<T>> item = iter.next();
 				iter.remove();
 				item.getKey().cancel();
-				item.getValue().close("Network event selector shutdown");
+				try {
+					item.getValue().close("Network event selector shutdown");
+				} catch (Throwable ex) {
+					// one bad session must not keep the rest open or the model undisposed
+					LOG.log(Level.WARNING, "Error while terminating session at " + item.getValue().getAddress(), ex);
+				}
 			}
 			for (Iterator<Map.Entry<SelectionKey, SocketChannel>> iter = pendingConnections.entrySet().iterator(); iter.hasNext(); ) {
 				Map.Entry<SelectionKey, SocketChannel> item = iter.next();
@@ -201,93 +677,148 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 					LOG.log(Level.WARNING, "Error while terminating listener at " + item.getValue().socket().getLocalSocketAddress(), ex);
 				}
 			}
-			model.dispose();
+			if (s != null && s.isOpen()) {
+				// we didn't get here through closeSelector()
+				try {
+					s.close();
+				} catch (IOException ex) {
+					LOG.log(Level.WARNING, "Error while closing network event selector", ex);
+				}
+			}
+			if (timer != null) {
+				LOG.log(Level.FINE, "Event loop timer: {0}", timer);
+				timer.shutdownNow();
+			}
+			if (runningEventLoops.decrementAndGet() == 0)
+				// only dispose the model once every selector has let go of its sessions
+				model.dispose();
 		}
 
 		@Override
 		public void run() {
-			// allows type safety, unlike SelectionKey.attach()
-			Map<SelectionKey, ClientSessionNio<T>> connected = new ConcurrentHashMap<SelectionKey, ClientSessionNio<T>>();
 			try {
+				thread = Thread.currentThread();
 				selector = Selector.open();
-				// in case !runInEventLoop.isEmpty()
-				selector.wakeup();
+				readyKeys = SelectedKeySet.install(selector);
+				// System.nanoTime() may be negative, so don't count on lastActive starting at 0
+				lastActive = System.nanoTime() - busyPollNanos;
 				while (selector.isOpen()) {
-					selector.select();
-					Set<SelectionKey> keys = selector.selectedKeys();
-					synchronized (runInEventLoop) {
-						for (Iterator<Runnable> iter = runInEventLoop.iterator(); iter.hasNext(); ) {
-							iter.next().run();
-							iter.remove();
-						}
-					}
+					boolean active = select();
+					lastSelected = System.nanoTime();
+					if (active)
+						lastActive = lastSelected;
+					resumeMemorySuspended();
+					if (timer != null)
+						timer.runDueTicks();
+					runQueuedTasks();
+					if (!selector.isOpen())
+						// closeSelector() ran. the selector won't give us its keys anymore.
+						break;
+					registerHandedOff();
 
-					for (Iterator<SelectionKey> keyIter = keys.iterator(); keyIter.hasNext(); ) {
-						SelectionKey key = keyIter.next();
-						keyIter.remove();
-
-						ServerSocketChannel listener;
-						SocketChannel client = null;
-						Map<String, Object> newConnProps;
-						ClientSessionNio<T> session = null;
-						try {
-							if (key.isValid() && key.isAcceptable())
-								if ((listener = listeners.get(key)) != null && (newConnProps = newConnectionProps.get(key)) != null)
-									session = registerNewClient(client = listener.accept(), connected, clientMakers.get(key), newConnProps);
-								else
-									close("Network event selector was manipulated outside of connect() and listen()", null);
-							if (key.isValid() && key.isConnectable() && (!(client = (SocketChannel) key.channel()).isConnectionPending() || client.finishConnect()))
-								if (pendingConnections.remove(key) == client && (newConnProps = newConnectionProps.remove(key)) != null)
-									session = registerNewClient(client, connected, clientMakers.remove(key), newConnProps);
-								else
-									close("Network event selector was manipulated outside of connect() and listen()", null);
-							if (key.isValid() && key.isReadable())
-								if ((session = connected.get(key)) != null)
-									readForClient(client = (SocketChannel) key.channel(), session);
-								else
-									close("Network event selector was manipulated outside of connect() and listen()", null);
-							if (key.isValid() && key.isWritable())
-								if ((session = connected.get(key)) != null)
-									writeForClient(client = (SocketChannel) key.channel(), session, key);
-								else
-									close("Network event selector was manipulated outside of connect() and listen()", null);
-						} catch (CancelledKeyException e) {
-							// don't worry about it - session is already closed
-						} catch (ConnectException ex) {
-							pendingConnections.remove(key);
-							SessionType sessionType = clientMakers.remove(key).typeToMake();
-							newConnProps = newConnectionProps.remove(key);
-							if (sessionType == null)
-								throw new IllegalStateException("Invalid session type " + sessionType);
-							model.onConnectFailed(sessionType, newConnProps, ex);
-						} catch (Throwable ex) {
-							// the show must go on. don't let any single iteration spoil our event loop.
-							if (session != null)
-								LOG.log(Level.WARNING, "Error while processing packet from " + session.getModel().getRemoteTypeString(), ex);
-							else if (client != null && client.socket() != null)
-								LOG.log(Level.WARNING, "Error while processing packet from " + client.socket().getRemoteSocketAddress(), ex);
-							else
-								LOG.log(Level.WARNING, "Error while processing packet", ex);
+					if (readyKeys != null) {
+						for (int i = 0; i < readyKeys.size(); i++)
+							processKey(readyKeys.get(i));
+						readyKeys.reset();
+					} else {
+						for (Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator(); keyIter.hasNext(); ) {
+							SelectionKey key = keyIter.next();
+							keyIter.remove();
+							processKey(key);
 						}
 					}
+					readAgain();
 				}
 			} catch (IOException ex) {
 				close(ex.getMessage(), ex);
+			} catch (RuntimeException ex) {
+				close("Network event selector failed", ex);
+			} finally {
+				// even if something unchecked got away from us, don't leave sessions,
+				// listeners and the model's resources behind
+				cleanupAll();
 			}
-			cleanupAll(connected);
 		}
 	}
 
 	private final T model;
 
 	private final AtomicBoolean closeEventsTriggered;
-	private final EventLoopTask eventLoop;
+	private final ExecutorService eventLoopThreadPool;
+	private final List<EventLoopTask> eventLoops;
+	private final ExecutorService acceptorThreadPool;
+	private final EventLoopTask acceptor;
+	private final LatencyStats acceptLatency;
+	private final LatencyStats taskLatency;
+	private final long startedAt;
+	private final int sendQueueHighWatermark, sendQueueLowWatermark;
+	private final int readBudget;
+	private final long busyPollNanos;
+	private final int acceptBacklog, maxAcceptsPerSelect;
+	private final AtomicInteger runningEventLoops;
+	private final AtomicInteger nextEventLoop;
+	// null if every event loop sweeps its own sessions
+	private final ScheduledFuture<?> idleSweep;
 
 	public ClientManagerNio(T thisState) {
+		this(thisState, new EventLoopOptions());
+	}
+
+	public ClientManagerNio(T thisState, EventLoopOptions options) {
+		if (options.eventLoops <= 0)
+			throw new IllegalArgumentException("eventLoops must be positive");
+		if (options.sendQueueLowWatermark < 0 || options.sendQueueLowWatermark > options.sendQueueHighWatermark)
+			throw new IllegalArgumentException("sendQueueLowWatermark must be between 0 and sendQueueHighWatermark");
+		if (options.readBudget <= 0)
+			throw new IllegalArgumentException("readBudget must be positive");
+		if (options.busyPollMicros < 0)
+			throw new IllegalArgumentException("busyPollMicros must not be negative");
+		if (options.maxAcceptsPerSelect <= 0)
+			throw new IllegalArgumentException("maxAcceptsPerSelect must be positive");
+
 		model = thisState;
 		closeEventsTriggered = new AtomicBoolean(false);
-		eventLoop = new EventLoopTask();
-		eventLoopThreadPool.submit(eventLoop);
+		sendQueueHighWatermark = options.sendQueueHighWatermark;
+		sendQueueLowWatermark = options.sendQueueLowWatermark;
+		readBudget = options.readBudget;
+		busyPollNanos = TimeUnit.MICROSECONDS.toNanos(options.busyPollMicros);
+		acceptBacklog = options.acceptBacklog;
+		maxAcceptsPerSelect = options.maxAcceptsPerSelect;
+		eventLoopThreadPool = Executors.newFixedThreadPool(options.eventLoops, new EventLoopThreadFactory("event-loop-thread", options.eventLoops != 1));
+		eventLoops = new ArrayList<EventLoopTask>(options.eventLoops);
+		runningEventLoops = new AtomicInteger(options.eventLoops + (options.acceptorThread ? 1 : 0));
+		nextEventLoop = new AtomicInteger(0);
+		acceptLatency = new LatencyStats();
+		taskLatency = new LatencyStats();
+		startedAt = System.nanoTime();
+		for (int i = 0; i < options.eventLoops; i++)
+			eventLoops.add(new EventLoopTask(false, options.timerInEventLoop));
+		if (options.acceptorThread) {
+			acceptorThreadPool = Executors.newSingleThreadExecutor(new EventLoopThreadFactory("acceptor-thread", false));
+			// never owns a session, so it has no use for a timer
+			acceptor = new EventLoopTask(true, false);
+		} else {
+			acceptorThreadPool = null;
+			acceptor = null;
+		}
+		// submit only after eventLoops is fully populated so every thread sees all of its peers
+		for (EventLoopTask eventLoop : eventLoops)
+			eventLoopThreadPool.submit(eventLoop);
+		if (acceptor != null)
+			acceptorThreadPool.submit(acceptor);
+		// timer work scales with the number of relay links, not with the
+		// number of packets they read
+		if (options.timerInEventLoop)
+			idleSweep = null;
+		else
+			idleSweep = model.getWheelTimer().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					long now = System.nanoTime();
+					for (EventLoopTask eventLoop : eventLoops)
+						eventLoop.checkIdle(now);
+				}
+			}, IDLE_SWEEP_INTERVAL, IDLE_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -296,14 +827,84 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 		}));
 	}
 
+	private EventLoopTask nextEventLoop() {
+		if (eventLoops.size() == 1)
+			return eventLoops.get(0);
+
+		return eventLoops.get((nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.size());
+	}
+
+	private EventLoopTask connectionEventLoop() {
+		return acceptor != null ? acceptor : nextEventLoop();
+	}
+
+	/**
+	 * @return the time between a selector noticing that a listener is ready and
+	 * the accepted connection being registered with the selector that owns it.
+	 */
+	public LatencyStats getAcceptLatency() {
+		return acceptLatency;
+	}
+
+	/**
+	 * @return the time between another thread handing a task or a new
+	 * connection to an event loop and the event loop getting to it.
+	 */
+	public LatencyStats getTaskLatency() {
+		return taskLatency;
+	}
+
+	/**
+	 * @return how many times a selector was actually woken up by another
+	 * thread, across all event loops.
+	 */
+	public long getWakeupCount() {
+		long total = acceptor != null ? acceptor.wakeups.get() : 0;
+		for (EventLoopTask eventLoop : eventLoops)
+			total += eventLoop.wakeups.get();
+		return total;
+	}
+
+	/**
+	 * @return how many wakeups were skipped because the selector had already
+	 * been woken up, across all event loops.
+	 */
+	public long getCoalescedWakeupCount() {
+		long total = acceptor != null ? acceptor.coalescedWakeups.get() : 0;
+		for (EventLoopTask eventLoop : eventLoops)
+			total += eventLoop.coalescedWakeups.get();
+		return total;
+	}
+
+	/**
+	 * @return the average rate of getWakeupCount() since we were constructed.
+	 */
+	public double getWakeupsPerSecond() {
+		long elapsed = System.nanoTime() - startedAt;
+		return elapsed <= 0 ? 0 : getWakeupCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+	}
+
 	@Override
 	public void close(String reason, Throwable reasonExc) {
 		if (closeEventsTriggered.compareAndSet(false, true)) {
-			eventLoop.closeSelector();
+			if (idleSweep != null)
+				idleSweep.cancel(false);
+			if (acceptor != null)
+				acceptor.closeSelector();
+			for (EventLoopTask eventLoop : eventLoops)
+				eventLoop.closeSelector();
 			if (reasonExc == null)
 				LOG.log(Level.INFO, "Network event selector closed ({0})", reason);
 			else
 				LOG.log(Level.INFO, "Network event selector closed (" + reason + ")", reasonExc);
+			LOG.log(Level.FINE, "Accept latency: {0}", acceptLatency);
+			LOG.log(Level.FINE, "Task queue latency: {0}", taskLatency);
+			LOG.log(Level.FINE, "Selector wakeups: {0} ({1}/s), {2} coalesced", new Object[] { getWakeupCount(), String.format("%.1f", getWakeupsPerSecond()), getCoalescedWakeupCount() });
+			LOG.log(Level.FINE, "Buffer cache: {0}", model.getBufferCache());
+			LOG.log(Level.FINE, "Buffers taken by this router: {0}", model.getBufferAccount());
+			LOG.log(Level.FINE, "Timer: {0}", model.getWheelTimer());
+			if (acceptorThreadPool != null)
+				acceptorThreadPool.shutdown();
 			eventLoopThreadPool.shutdown();
 		}
 	}
@@ -317,10 +918,10 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 		SocketAddress address = new InetSocketAddress(host, port);
 		try {
 			ServerSocketChannel listener = ServerSocketChannel.open();
-			listener.socket().bind(address);
+			listener.socket().bind(address, acceptBacklog);
 			listener.configureBlocking(false);
 
-			eventLoop.addAcceptor(address, clientMaker, listener, properties);
+			connectionEventLoop().addAcceptor(address, clientMaker, listener, properties);
 		} catch (IOException ex) {
 			close("Could not bind on " + address, ex);
 		}
@@ -338,7 +939,7 @@ public class ClientManagerNio<T extends LocalRouter<T>> implements ClientManager
 			speaker.configureBlocking(false);
 			speaker.connect(address);
 
-			eventLoop.addConnector(address, clientMaker, speaker, properties);
+			connectionEventLoop().addConnector(address, clientMaker, speaker, properties);
 		} catch (IOException ex) {
 			close("Could not connect to " + address, ex);
 		}
@@ -2,9 +2,10 @@ package in.kevinj.natladder.common.netimpl;
 
 import in.kevinj.natladder.common.model.ClientType;
 import in.kevinj.natladder.common.model.LocalRouter;
-import in.kevinj.natladder.common.model.PacketHeaders;
 import in.kevinj.natladder.common.model.RemoteNode;
 import in.kevinj.natladder.common.model.SessionType;
+import in.kevinj.natladder.common.model.codec.PingMessage;
+import in.kevinj.natladder.common.model.codec.PipeCreditMessage;
 import in.kevinj.natladder.common.util.PacketBuilder;
 import in.kevinj.natladder.common.util.PacketParser;
 
@@ -15,9 +16,11 @@ import java.nio.channels.Channel;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,11 +35,33 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 	// maximum length of control packets.
 	protected static final int MAX_PACKET_LENGTH = 64 * 1024;
 	private static final int HEADER_LENGTH = Integer.SIZE / 8 + Short.SIZE / 8;
-	private static final int IDLE_TIME = 60000; //in milliseconds
+	// control links read as much as the socket has and decode any number of
+	// frames out of it, so make sure a frame of the maximum length always fits.
+	private static final int DECODE_BUFFER_SIZE = MAX_PACKET_LENGTH;
+	// each pipe may have this many raw bytes in flight between the two termini.
+	// the receiving end grants credit back as it writes to its terminus, so a
+	// stalled terminus only blocks its own pipe instead of the whole relay link.
+	// both ends of a pipe must agree on this, and both must have advertised
+	// PIPE_CAPABILITY_CREDIT when the pipe was made.
+	private static final int PIPE_WINDOW = 256 * 1024;
+	// don't send a PIPE_CREDIT for every tiny write
+	private static final int PIPE_CREDIT_BATCH = PIPE_WINDOW / 4;
+	private static final long IDLE_TIME = TimeUnit.SECONDS.toNanos(60);
 	private static final int TIMEOUT = 15000; //in milliseconds
 
 	public enum MessageType { HEADER, BODY, RAW }
 
+	// whoever moves readState away from READ_IN_PROGRESS or READ_IDLE last
+	// releases readBuffer
+	private static final int READ_IDLE = 0, READ_IN_PROGRESS = 1, READ_CLOSED = 2;
+
+	// reasons to stop reading from a session
+	protected static final int
+		READ_SUSPENDED_BACKLOG = 1 << 0,
+		READ_SUSPENDED_NO_CREDIT = 1 << 1,
+		READ_SUSPENDED_MEMORY = 1 << 2
+	;
+
 	static {
 		assert MAX_PACKET_LENGTH > BufferCache.DEFAULT_BUFFER_SIZE;
 	}
@@ -49,11 +74,11 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 		}
 
 		public void sendPing() {
-			send(new byte[] { PacketHeaders.PING }, LocalRouter.CONTROL_CODE);
+			PingMessage.encode(packetBuilder(PingMessage.LENGTH, LocalRouter.CONTROL_CODE)).send();
 		}
 
 		public void waitForPong() {
-			future.set(model.getLocalNode().getWheelTimer().schedule(idleTask, TIMEOUT, TimeUnit.MILLISECONDS));
+			future.set(getTimer().schedule(this, TIMEOUT, TimeUnit.MILLISECONDS));
 		}
 
 		@Override
@@ -77,42 +102,49 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 	private Runnable preClose;
 
 	protected final AtomicBoolean closeEventsTriggered;
+	private PooledBuffer pooledReadBuffer;
 	private ByteBuffer readBuffer;
-	private int readBufferOverflow;
+	private final AtomicInteger readState;
+	private int bodyLength;
 	private MessageType nextMessageType;
 
 	private int expectedRelayChainLength;
+	// raw bytes we may still send through our pipe
+	private final AtomicInteger pipeCredit;
+	// raw bytes written to us that we haven't granted back to the other end
+	private final AtomicInteger pipeCreditOwed;
+	// whether the other end of our pipe grants and expects PIPE_CREDIT
+	private volatile boolean pipeCreditEnabled;
+
+	// the body of the control packet being processed is a window into
+	// readBuffer, so the same parser is reused for every one of them
+	private PacketParser controlPacket;
 
 	private final KeepAliveTask heartbeatTask;
-	private final Runnable idleTask;
-	private ScheduledFuture<?> idleTaskFuture;
+	// System.nanoTime() of the last read, for checkIdle()
+	private volatile long lastActivity;
 
 	public ClientSession(RemoteNode<T> model, Runnable onClose) {
 		this.model = model;
 		this.postClose = onClose;
 
 		closeEventsTriggered = new AtomicBoolean(false);
-		readBuffer = model.getLocalNode().getBufferCache().takeBuffer();
+		readState = new AtomicInteger(READ_IDLE);
+		pipeCredit = new AtomicInteger(PIPE_WINDOW);
+		pipeCreditOwed = new AtomicInteger(0);
 		if (model.forwardRaw()) {
-			// must reserve space for packet prefix (payload length and relay chain)
 			expectedRelayChainLength = model.getLocalNode().getIntermediateHops();
-			readBuffer.position(Integer.SIZE / 8 + Short.SIZE / 8 * expectedRelayChainLength);
+			takeRawReadBuffer();
 			nextMessageType = MessageType.RAW;
 
+			controlPacket = null;
 			heartbeatTask = null;
-			idleTask = null;
 		} else {
-			readBuffer.limit(HEADER_LENGTH);
+			// readBuffer() takes the decode buffer when there is something to read
 			nextMessageType = MessageType.HEADER;
 
 			heartbeatTask = new KeepAliveTask();
-			idleTask = new Runnable() {
-				@Override
-				public void run() {
-					startPingTask();
-				}
-			};
-			idleTaskFuture = model.getLocalNode().getWheelTimer().schedule(idleTask, IDLE_TIME, TimeUnit.MILLISECONDS);
+			lastActivity = System.nanoTime();
 		}
 	}
 
@@ -120,6 +152,13 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 		return model;
 	}
 
+	/**
+	 * @return the timer that timeouts for this session are scheduled on.
+	 */
+	public ScheduledExecutorService getTimer() {
+		return model.getLocalNode().getWheelTimer();
+	}
+
 	public void setPreClose(Runnable r) {
 		preClose = r;
 	}
@@ -127,16 +166,71 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 	public abstract SocketAddress getAddress();
 
 	/* package-private */ ByteBuffer readBuffer() {
+		if (readBuffer == null)
+			// a control link that gave back its decode buffer once it was drained
+			takeDecodeBuffer();
 		return readBuffer;
 	}
 
+	/**
+	 * Must be called before reading into readBuffer().
+	 * @return false if the session is closed and must not be read from.
+	 */
+	/* package-private */ boolean beginRead() {
+		return readState.compareAndSet(READ_IDLE, READ_IN_PROGRESS);
+	}
+
+	/* package-private */ void endRead() {
+		if (!readState.compareAndSet(READ_IN_PROGRESS, READ_IDLE))
+			// we were closed while reading, so close() left readBuffer for us
+			releaseReadBuffer();
+	}
+
+	private void releaseReadBuffer() {
+		PooledBuffer buf = pooledReadBuffer;
+		pooledReadBuffer = null;
+		readBuffer = null;
+		if (buf != null)
+			buf.release();
+	}
+
+	// charge the buffer to our router even if its cache is shared with others
+	private PooledBuffer takePooledBuffer(int minimumSize) {
+		T localNode = model.getLocalNode();
+		return localNode.getBufferCache().takePooledBuffer(minimumSize, localNode.getBufferAccount());
+	}
+
+	private void takeDecodeBuffer() {
+		pooledReadBuffer = takePooledBuffer(DECODE_BUFFER_SIZE);
+		readBuffer = pooledReadBuffer.buffer();
+		controlPacket = new PacketParser(readBuffer) {
+			@Override
+			public void dispose() {
+				// readBuffer is reused for the next frame
+			}
+		};
+	}
+
+	private void takeRawReadBuffer() {
+		pooledReadBuffer = takePooledBuffer(BufferCache.DEFAULT_BUFFER_SIZE);
+		readBuffer = pooledReadBuffer.buffer();
+		// must reserve space for packet prefix (payload length and relay chain)
+		readBuffer.position(Integer.SIZE / 8 + Short.SIZE / 8 * expectedRelayChainLength);
+	}
+
+	private void logDroppedContents(ByteBuffer contents) {
+		if (LOG.isLoggable(Level.FINER)) {
+			byte[] bytes = new byte[contents.remaining()];
+			contents.duplicate().get(bytes);
+
+			LOG.log(Level.FINER, "Dropped packet {0}", Arrays.toString(bytes));
+		}
+	}
+
 	private void logDroppedPacket(ByteBuffer buf) {
 		if (LOG.isLoggable(Level.FINER)) {
 			buf.flip();
-			byte[] contents = new byte[buf.remaining()];
-			buf.get(contents);
-
-			LOG.log(Level.FINER, "Dropped packet {0}", Arrays.toString(contents));
+			logDroppedContents(buf);
 		}
 	}
 
@@ -144,20 +238,16 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 		logDroppedPacket(readBuffer);
 	}
 
-	private boolean processHeader(int readBytes) {
+	private boolean processHeader() {
 		assert !model.forwardRaw() : "Forwarding raw in processHeader()";
 
-		if (readBuffer.remaining() != 0)
+		if (readBuffer.remaining() < HEADER_LENGTH)
 			// keep reading until we get the full header
 			return false;
 
 		// fully read the header and parse it
-		readBuffer.flip();
-		assert readBuffer.remaining() == HEADER_LENGTH : readBuffer.remaining();
 		int recvPktRemaining = readBuffer.getInt();
 		short forwardTo = readBuffer.getShort();
-		assert !readBuffer.hasRemaining() : "HEADER_LENGTH too long for actual header";
-		readBuffer.clear();
 
 		try {
 			if (recvPktRemaining <= 0)
@@ -166,105 +256,106 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 				throw new IllegalStateException("Received too large packet");
 
 			model.setThisMessageDest(forwardTo);
-			if (model.isThisMessageForUs()) {
-				// prepare the buffer for parsing the message locally
-				if (readBuffer.remaining() < recvPktRemaining) {
-					// ensure we can get the entire packet in one pass
-					model.getLocalNode().getBufferCache().tryReturnBuffer(readBuffer);
-					readBuffer = ByteBuffer.allocate(recvPktRemaining);
-				}
-			} else {
-				// prepare the buffer for forwarding the message
-				RemoteNode<T> nextNode = model.getNextNode();
-				if (nextNode != null && !nextNode.forwardRaw())
-					readBuffer.putInt(recvPktRemaining - Short.SIZE / 8);
-			}
 		} catch (Throwable t) {
 			LOG.log(Level.WARNING, "Error while processing packet header from " + model.getRemoteTypeString(), t);
 			// our state is inconsistent. we don't know how to handle what we're being dealt.
 			// there is no easy way out of this, so just kill ourself.
 			close(t.getMessage());
+			return false;
 		}
 
 		nextMessageType = MessageType.BODY;
-		readBufferOverflow = Math.max(0, recvPktRemaining - readBuffer.remaining());
-		readBuffer.limit(recvPktRemaining - readBufferOverflow + readBuffer.position());
+		bodyLength = recvPktRemaining;
 		return true;
 	}
 
-	private boolean processBody(int readBytes) {
-		assert !model.forwardRaw() : "Forwarding raw in procesBody()";
-
-		if (readBytes == 0)
-			// non-blocking read didn't find any body content immediately after header
-			return false;
-
-		if (model.isThisMessageForUs()) {
-			// received message intended for us
-			if (readBuffer.remaining() != 0)
-				// keep reading until we get the full body
-				return false;
-
-			// fully read the body and parse it
-			try {
-				readBuffer.flip();
-				model.processControlPacket(new PacketParser(readBuffer) {
-					@Override
-					public void dispose() {
-						model.getLocalNode().getBufferCache().tryReturnBuffer(buf);
-					}
-				});
-			} catch (Throwable t) {
-				LOG.log(Level.WARNING, "Error while processing control packet from " + model.getRemoteTypeString(), t);
+	private void forwardBody(ByteBuffer body) {
+		int start = body.position();
+		try {
+			RemoteNode<T> nextNode = model.getNextNode();
+			if (nextNode == null) {
+				model.foundNextNodeCut();
+				logDroppedContents(body);
+				return;
 			}
 
-			// in case we had to allocate a bespoke non-direct buffer to handle
-			// a large command packet, we will throw out readBuffer since it will
-			// cause forwarding performance to suffer and its one-time length is
-			// not compatible with the buffer cache.
-			// in case the buffer is direct and of the standard size, we expect
-			// processControlPacket() to return the buffer to cache once all
-			// bytes in it have been read and processed.
-			readBuffer = model.getLocalNode().getBufferCache().takeBuffer();
-		} else {
-			// received message to be forwarded
-			int recvPktRemaining = readBufferOverflow + readBuffer.remaining();
-			boolean bufferSafe = false;
+			// the writer may hold on to the message after we reuse our read buffer,
+			// so copy the frame out of it. if the next hop is a relay, the header is
+			// rewritten to strip off our node code from the front of the relay chain.
+			boolean relay = !nextNode.forwardRaw();
+			int length = (relay ? Integer.SIZE / 8 : 0) + body.remaining();
+			PooledBuffer buf = takePooledBuffer(length);
 			try {
-				RemoteNode<T> nextNode = model.getNextNode();
-				if (nextNode == null) {
-					model.foundNextNodeCut();
-					logDroppedPacket();
-				} else {
-					nextNode.getClientSession().writeMessage(readBuffer);
-					bufferSafe = true;
-				}
-			} catch (Throwable t) {
-				LOG.log(Level.WARNING, "Error while forwarding control packet from " + model.getRemoteTypeString(), t);
-				logDroppedPacket();
+				if (relay)
+					buf.buffer().putInt(body.remaining() - Short.SIZE / 8);
+				buf.buffer().put(body);
+				nextNode.getClientSession().writeMessage(buf);
 			} finally {
-				if (!bufferSafe)
-					model.getLocalNode().getBufferCache().tryReturnBuffer(readBuffer);
+				buf.release();
 			}
+			throttleFor(nextNode.getClientSession());
+		} catch (Throwable t) {
+			LOG.log(Level.WARNING, "Error while forwarding control packet from " + model.getRemoteTypeString(), t);
+			body.position(start);
+			logDroppedContents(body);
+		}
+	}
+
+	private boolean processBody() {
+		assert !model.forwardRaw() : "Forwarding raw in processBody()";
 
-			// to minimize copying between buffers, we convert our current read buffer
-			// to a write buffer and allocate ourself a new read buffer. in handing
-			// control to writer, we expect writeMessage() to return the buffer to cache
-			// once all bytes in the buffer have been written to nextMessageDest.
-			readBuffer = model.getLocalNode().getBufferCache().takeBuffer();
-			if (recvPktRemaining > 0) {
-				// still have not forwarded the entire body. it's probably that we have
-				// more body queued up that couldn't entirely fit into the buffer.
-				readBufferOverflow = Math.max(0, recvPktRemaining - readBuffer.remaining());
-				readBuffer.limit(recvPktRemaining - readBufferOverflow + readBuffer.position());
-				return true;
+		if (readBuffer.remaining() < bodyLength)
+			// keep reading until we get the full body
+			return false;
+
+		// temporarily limit readBuffer to just this body so that any number of
+		// frames can be handled out of one read without copying or allocating
+		int limit = readBuffer.limit();
+		int end = readBuffer.position() + bodyLength;
+		readBuffer.limit(end);
+		try {
+			if (model.isThisMessageForUs()) {
+				// received message intended for us
+				try {
+					model.processControlPacket(controlPacket);
+				} catch (Throwable t) {
+					LOG.log(Level.WARNING, "Error while processing control packet from " + model.getRemoteTypeString(), t);
+				}
+			} else {
+				// received message to be forwarded
+				forwardBody(readBuffer);
 			}
+		} finally {
+			readBuffer.limit(limit);
+			readBuffer.position(end);
 		}
 
-		// after reading the entire body, prepare to read the next header
-		readBuffer.limit(HEADER_LENGTH);
+		// after handling the entire body, prepare to read the next header
 		nextMessageType = MessageType.HEADER;
-		return false;
+		return true;
+	}
+
+	private boolean processFrames(int readBytes) {
+		if (readBytes == 0)
+			// non-blocking read didn't find anything new
+			return false;
+
+		// if the read filled readBuffer, the socket probably has more for us
+		boolean mayHaveMore = !readBuffer.hasRemaining();
+		readBuffer.flip();
+		while (nextMessageType == MessageType.HEADER ? processHeader() : processBody());
+		// carry any partial frame over to the start of the buffer for the next read.
+		// readBuffer can fit the largest legal frame, so a partial frame never
+		// leaves us without room to read the rest of it.
+		readBuffer.compact();
+		if (!mayHaveMore && readBuffer.position() == 0) {
+			// drained. don't hold 64KB of the cache for a link that may sit idle
+			// for minutes. if we were closed meanwhile, endRead() finds it gone.
+			releaseReadBuffer();
+			controlPacket = null;
+			return false;
+		}
+		return mayHaveMore && !closeEventsTriggered.get();
 	}
 
 	private boolean processRaw(int readBytes) {
@@ -275,18 +366,21 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 			return false;
 
 		int recvPktRemaining = readBuffer.remaining();
-		boolean bufferSafe = false;
+		int payloadLength = readBuffer.position() - (Integer.SIZE / 8 + Short.SIZE / 8 * expectedRelayChainLength);
+		PooledBuffer buf = pooledReadBuffer;
 		try {
 			// received message to be forwarded
 			short[] relayChain = model.getLocalNode().getRelayChain(model.getRemoteCode());
 
 			RemoteNode<T> nextNode = model.getNextNode();
-			if (relayChain == null) {
+			if (relayChain == null || model.isDeferringRaw()) {
 				// if entry node, queue up messages until we get PIPE_MADE
 				// or PIPE_FAILED from exit node. time out after 1 minute or so
 				// if no response received and let flushQueuedRaw() run.
-				model.deferRaw(readBuffer);
-				bufferSafe = true;
+				// the relay chain may be set on another event loop thread
+				// before the messages we already queued are flushed, so keep
+				// queueing until then to not overtake them.
+				model.deferRaw(buf);
 			} else if (nextNode == null) {
 				model.foundNextNodeCut();
 				logDroppedPacket();
@@ -303,39 +397,97 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 				readBuffer.putInt(0, readBuffer.position() - (Integer.SIZE / 8 + Short.SIZE / 8));
 				for (int i = 0; i < relayChain.length; i++)
 					readBuffer.putShort(Integer.SIZE / 8 + Short.SIZE / 8 * i, relayChain[i]);
-				nextNode.getClientSession().writeMessage(readBuffer);
-				bufferSafe = true;
+				nextNode.getClientSession().writeMessage(buf);
+				consumePipeCredit(payloadLength);
 				expectedRelayChainLength = relayChain.length;
+				throttleFor(nextNode.getClientSession());
 			}
 		} catch (Throwable t) {
 			LOG.log(Level.WARNING, "Error while forwarding raw packet from " + model.getRemoteTypeString(), t);
 			logDroppedPacket();
 		} finally {
-			if (!bufferSafe)
-				model.getLocalNode().getBufferCache().tryReturnBuffer(readBuffer);
+			// writeMessage() and deferRaw() retain the buffer if they keep it
+			buf.release();
 		}
 
 		// to minimize copying between buffers, we convert our current read buffer
-		// to a write buffer and allocate ourself a new read buffer. in handing
-		// control to writer, we expect writeMessage() to return the buffer to cache
-		// once all bytes in the buffer have been written to nextMessageDest.
-		readBuffer = model.getLocalNode().getBufferCache().takeBuffer();
-		// must reserve space for packet prefix (payload length and relay chain)
-		readBuffer.position(Integer.SIZE / 8 + Short.SIZE / 8 * expectedRelayChainLength);
+		// to a write buffer and take ourself a new read buffer. the old one goes
+		// back to the cache once all bytes in it have been written to nextNode.
+		takeRawReadBuffer();
 		// note that (recvPktRemaining == readBuffer's unused capacity).
 		// if readBuffer was full, it's probable that we have more body queued up
 		// that couldn't entirely fit into the buffer.
 		return recvPktRemaining == 0;
 	}
 
-	public void disposeQueuedRaw(Collection<ByteBuffer> bufs) {
-		for (Iterator<ByteBuffer> iter = bufs.iterator(); iter.hasNext(); ) {
-			model.getLocalNode().getBufferCache().tryReturnBuffer(iter.next());
+	private void consumePipeCredit(int bytes) {
+		if (!pipeCreditEnabled)
+			return;
+		if (pipeCredit.addAndGet(-bytes) > 0)
+			return;
+
+		// other end of the pipe hasn't caught up yet. wait for a PIPE_CREDIT.
+		suspendReads(READ_SUSPENDED_NO_CREDIT);
+		// credit may have been granted before we suspended
+		if (pipeCredit.get() > 0)
+			resumeReads(READ_SUSPENDED_NO_CREDIT);
+	}
+
+	/**
+	 * Called once both ends of our pipe have said that they support
+	 * PIPE_CAPABILITY_CREDIT, before any raw bytes go through the pipe. Until
+	 * then, we neither hold back raw bytes nor grant any credit, since a peer
+	 * that doesn't know about PIPE_CREDIT would never send it to us, and would
+	 * reject it if we sent it.
+	 */
+	public void enablePipeCredit() {
+		pipeCreditEnabled = true;
+	}
+
+	/**
+	 * Called when the other end of our pipe has written bytes that we sent it
+	 * to its terminus.
+	 */
+	public void grantPipeCredit(int bytes) {
+		if (pipeCredit.addAndGet(bytes) > 0)
+			resumeReads(READ_SUSPENDED_NO_CREDIT);
+	}
+
+	/**
+	 * Called when raw bytes that came through our pipe have been written to
+	 * our terminus, so that the other end of the pipe may send more.
+	 */
+	/* package-private */ void pipeDrained(int bytes) {
+		if (!pipeCreditEnabled)
+			return;
+		if (pipeCreditOwed.addAndGet(bytes) < PIPE_CREDIT_BATCH)
+			return;
+
+		int credit = pipeCreditOwed.getAndSet(0);
+		if (credit <= 0)
+			// another thread beat us to it
+			return;
+
+		short[] relayChain = model.getLocalNode().getRelayChain(model.getRemoteCode());
+		RemoteNode<T> nextNode = model.getNextNode();
+		if (relayChain == null || nextNode == null)
+			// pipe is being torn down. nobody to send credit to.
+			return;
+
+		PipeCreditMessage.encode(nextNode.getClientSession().packetBuilder(PipeCreditMessage.LENGTH, relayChain[0], LocalRouter.CONTROL_CODE),
+			relayChain[1],
+			credit
+		).send();
+	}
+
+	public void disposeQueuedRaw(Collection<PooledBuffer> bufs) {
+		for (Iterator<PooledBuffer> iter = bufs.iterator(); iter.hasNext(); ) {
+			iter.next().release();
 			iter.remove();
 		}
 	}
 
-	public void flushQueuedRaw(Collection<ByteBuffer> bufs) {
+	public void flushQueuedRaw(Collection<PooledBuffer> bufs) {
 		try {
 			short[] relayChain = model.getLocalNode().getRelayChain(model.getRemoteCode());
 			if (relayChain == null)
@@ -344,84 +496,128 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 			RemoteNode<T> nextNode = model.getNextNode();
 			if (nextNode == null) {
 				model.foundNextNodeCut();
-				for (ByteBuffer unprocessed : bufs)
-					logDroppedPacket(unprocessed);
+				for (PooledBuffer unprocessed : bufs)
+					logDroppedPacket(unprocessed.buffer());
 			} else {
-				for (Iterator<ByteBuffer> iter = bufs.iterator(); iter.hasNext(); ) {
-					ByteBuffer buf = iter.next();
-					buf.putInt(0, buf.position() - (Integer.SIZE / 8 + Short.SIZE / 8));
+				for (Iterator<PooledBuffer> iter = bufs.iterator(); iter.hasNext(); ) {
+					PooledBuffer buf = iter.next();
+					ByteBuffer bytes = buf.buffer();
+					bytes.putInt(0, bytes.position() - (Integer.SIZE / 8 + Short.SIZE / 8));
 					for (int i = 0; i < relayChain.length; i++)
-						buf.putShort(Integer.SIZE / 8 + Short.SIZE / 8 * i, relayChain[i]);
-					nextNode.getClientSession().writeMessage(buf);
-					iter.remove();
+						bytes.putShort(Integer.SIZE / 8 + Short.SIZE / 8 * i, relayChain[i]);
+					try {
+						nextNode.getClientSession().writeMessage(buf);
+						consumePipeCredit(bytes.position() - (Integer.SIZE / 8 + Short.SIZE / 8 * relayChain.length));
+					} finally {
+						// drop the reference that deferRaw() took
+						buf.release();
+						iter.remove();
+					}
 				}
+				throttleFor(nextNode.getClientSession());
 			}
 
 			expectedRelayChainLength = relayChain.length;
 		} catch (Throwable t) {
 			LOG.log(Level.WARNING, "Error while forwarding raw packet from " + model.getRemoteTypeString(), t);
-			for (ByteBuffer unprocessed : bufs)
-				logDroppedPacket(unprocessed);
+			for (PooledBuffer unprocessed : bufs)
+				logDroppedPacket(unprocessed.buffer());
 		} finally {
 			disposeQueuedRaw(bufs);
 		}
 	}
 
 	/* package-private */ boolean readMessage(int readBytes) {
-		if (!model.forwardRaw())
-			idleTaskFuture.cancel(false);
 		if (readBytes == -1) {
 			// connection closed
 			close("EOF received");
 			return false;
 		}
 
-		try {
-			switch (nextMessageType) {
-				case HEADER:
-					return processHeader(readBytes);
-				case BODY:
-					return processBody(readBytes);
-				case RAW:
-					return processRaw(readBytes);
-				default:
-					throw new IllegalStateException("Invalid nextMessageType " + nextMessageType);
-			}
-		} finally {
-			if (!model.forwardRaw())
-				idleTaskFuture = model.getLocalNode().getWheelTimer().schedule(idleTask, IDLE_TIME, TimeUnit.MILLISECONDS);
+		switch (nextMessageType) {
+			case HEADER:
+			case BODY:
+				return processFrames(readBytes);
+			case RAW:
+				return processRaw(readBytes);
+			default:
+				throw new IllegalStateException("Invalid nextMessageType " + nextMessageType);
 		}
 	}
 
-	protected abstract void writeMessage(ByteBuffer buf);
+	/**
+	 * @return true if this session pings the other end when it goes quiet, in
+	 * which case checkIdle() should be called periodically.
+	 */
+	/* package-private */ boolean isKeptAlive() {
+		return heartbeatTask != null;
+	}
+
+	/* package-private */ void markActive(long now) {
+		lastActivity = now;
+	}
+
+	/**
+	 * Pings the other end if nothing was read from it in the last IDLE_TIME.
+	 * @param now System.nanoTime()
+	 */
+	/* package-private */ void checkIdle(long now) {
+		if (now - lastActivity < IDLE_TIME || closeEventsTriggered.get())
+			return;
+
+		// don't ping again on the next sweep. we'll be closed if no pong comes.
+		lastActivity = now;
+		startPingTask();
+	}
+
+	/**
+	 * Queues up the bytes between buf's start and position to be sent. buf is
+	 * retained for as long as it is queued, so the caller still has to release
+	 * its own reference. To send the same bytes to several sessions, pass each
+	 * one a duplicate().
+	 */
+	protected abstract void writeMessage(PooledBuffer buf);
+
+	/**
+	 * Called after this session forwards a message to destination. If
+	 * destination has too much queued up to send, stop reading from this
+	 * session until destination catches up.
+	 */
+	protected abstract void throttleFor(ClientSession<T> destination);
+
+	/**
+	 * Stop reading from this session until resumeReads() is called with the
+	 * same reason. Reads only resume once all reasons have been cleared.
+	 */
+	protected abstract void suspendReads(int reason);
+
+	protected abstract void resumeReads(int reason);
 
 	public void send(byte[] message, short... destinationChain) {
-		ByteBuffer buf = ByteBuffer.allocate(Integer.SIZE / 8 + Short.SIZE / 8 * destinationChain.length + message.length);
-		buf.putInt(message.length);
-		for (short relay : destinationChain)
-			buf.putShort(relay);
-		buf.put(message);
-		writeMessage(buf);
+		packetBuilder(message.length, destinationChain).writeBytes(message).send();
 	}
 
-	public PacketBuilder packetBuilder(int initialMessageLength, final short... destinationChain) {
-		final int prefixLen = Integer.SIZE / 8 + Short.SIZE / 8;
-		return new PacketBuilder(prefixLen + initialMessageLength) {
-			@Override
-			protected void initialize(ByteBuffer buf) {
-				// reserve space for length
-				buf.position(Integer.SIZE / 8);
-				for (int i = 0; i < destinationChain.length; i++)
-					buf.putShort(destinationChain[i]);
-			}
+	/**
+	 * The returned builder is reused by the current thread once send() is
+	 * called, so it must not be touched after that.
+	 */
+	public PacketBuilder packetBuilder(int initialMessageLength, short... destinationChain) {
+		PacketBuilder builder = PooledPacketBuilder.begin(this, model.getLocalNode().getBufferCache(), model.getLocalNode().getBufferAccount(), Short.SIZE / 8 * (destinationChain.length - 1) + initialMessageLength);
+		for (int i = 0; i < destinationChain.length; i++)
+			builder.writeShort(destinationChain[i]);
+		return builder;
+	}
 
-			@Override
-			protected void commit(ByteBuffer buf) {
-				// fill in length
-				buf.putInt(0, buf.position() - prefixLen);
-				writeMessage(buf);
-			}
-		};
+	// overloads for the usual relay chains, so that they don't need a varargs array
+	public PacketBuilder packetBuilder(int initialMessageLength, short destination) {
+		return PooledPacketBuilder.begin(this, model.getLocalNode().getBufferCache(), model.getLocalNode().getBufferAccount(), initialMessageLength)
+			.writeShort(destination);
+	}
+
+	public PacketBuilder packetBuilder(int initialMessageLength, short firstHop, short destination) {
+		return PooledPacketBuilder.begin(this, model.getLocalNode().getBufferCache(), model.getLocalNode().getBufferAccount(), Short.SIZE / 8 + initialMessageLength)
+			.writeShort(firstHop)
+			.writeShort(destination);
 	}
 
 	public PacketBuilder packetBuilder(short... destinationChain) {
@@ -442,10 +638,10 @@ public abstract class ClientSession<T extends LocalRouter<T>> {
 			}
 			if (!model.forwardRaw())
 				stopPingTask();
-			//this check is thread safe - idleTaskFuture can never be null again after it has been assigned a non-null value
-			if (idleTaskFuture != null)
-				//client closed before we could send init packet
-				idleTaskFuture.cancel(false);
+
+			if (readState.getAndSet(READ_CLOSED) == READ_IDLE)
+				// otherwise, the reader will do it once it's done with readBuffer
+				releaseReadBuffer();
 
 			LOG.log(Level.FINE, "Cut connection with {0} ({1})", new Object[] { getAddress(), reason });
 			if (postClose != null)
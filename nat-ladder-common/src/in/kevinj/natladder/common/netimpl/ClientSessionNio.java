@@ -11,59 +11,214 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 public class ClientSessionNio<T extends LocalRouter<T>> extends ClientSession<T> {
+	// most platforms cap a single writev() at 1024 buffers (IOV_MAX), and the
+	// JDK caps it further internally. 64 full buffers is already 256KB, which
+	// is more than a socket send buffer usually has room for.
+	private static final int MAX_GATHERED_BUFFERS = 64;
+
 	private final SocketChannel commChn;
 	private final SelectionKey selectionKey;
-	private final UnorderedQueue sendQueue;
+	// null if we use the local node's timer
+	private final ScheduledExecutorService timer;
+	// wakes up our event loop without a syscall if it's already awake
+	private final Runnable wakeup;
+	private final UnorderedQueue<PooledBuffer> sendQueue;
+	private final Queue<PooledBuffer> flushing;
+	private final ByteBuffer[] gatherBuffers;
+
+	private final int highWatermark, lowWatermark;
+	private final AtomicInteger queuedBytes;
+	// sessions that stopped reading because we were backed up
+	private final Set<ClientSessionNio<T>> throttled;
+	// bitmask of the READ_SUSPENDED_* reasons that we currently aren't reading for
+	private int readSuspended;
 
-	public ClientSessionNio(RemoteNode<T> model, SocketChannel channel, SelectionKey acceptedKey, Runnable onClose) {
+	public ClientSessionNio(RemoteNode<T> model, SocketChannel channel, SelectionKey acceptedKey, int highWatermark, int lowWatermark, ScheduledExecutorService timer, Runnable wakeup, Runnable onClose) {
 		super(model, onClose);
 		commChn = channel;
 		selectionKey = acceptedKey;
-		sendQueue = new UnorderedQueue();
+		this.timer = timer;
+		this.wakeup = wakeup;
+		sendQueue = new UnorderedQueue<PooledBuffer>();
+		flushing = new ArrayDeque<PooledBuffer>();
+		gatherBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		queuedBytes = new AtomicInteger(0);
+		throttled = Collections.newSetFromMap(new ConcurrentHashMap<ClientSessionNio<T>, Boolean>());
 
 		LOG.log(Level.FINE, "Established connection with {0}", getAddress());
 	}
 
+	@Override
+	public ScheduledExecutorService getTimer() {
+		return timer != null ? timer : super.getTimer();
+	}
+
 	@Override
 	public SocketAddress getAddress() {
 		return commChn.socket().getRemoteSocketAddress();
 	}
 
 	@Override
-	protected void writeMessage(ByteBuffer buf) {
-		if (closeEventsTriggered.get()) {
+	protected void writeMessage(PooledBuffer buf) {
+		if (closeEventsTriggered.get())
 			// don't want to add any new buffers to sendQueue
-			getModel().getLocalNode().getBufferCache().tryReturnBuffer(buf);
 			return;
-		}
 
-		buf.flip();
-		if (buf.remaining() > MAX_PACKET_LENGTH) {
+		ByteBuffer bytes = buf.buffer();
+		bytes.flip();
+		if (bytes.remaining() > MAX_PACKET_LENGTH)
 			// receiving end will just deny this packet anyway
-			getModel().getLocalNode().getBufferCache().tryReturnBuffer(buf);
 			throw new IllegalStateException("Sending too large packet");
-		}
 
-		sendQueue.insert(buf);
+		queuedBytes.addAndGet(bytes.remaining());
+		// the caller keeps its own reference, so sendQueue needs one too
+		sendQueue.insert(buf.retain());
 		try {
-			if (selectionKey.isValid() && tryFlushSendQueue() == 0) {
-				selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
-				selectionKey.selector().wakeup();
-			}
+			if (selectionKey.isValid() && tryFlushSendQueue() == 0)
+				updateInterestOps(SelectionKey.OP_WRITE, 0);
 		} catch (CancelledKeyException e) {
 			//don't worry about it - session is already closed
 		}
 	}
 
+	/**
+	 * Other threads may add OP_WRITE or toggle OP_READ at the same time as
+	 * our event loop, so all read-modify-writes of interestOps go through here.
+	 */
+	/* package-private */ void updateInterestOps(int add, int remove) {
+		synchronized (selectionKey) {
+			selectionKey.interestOps((selectionKey.interestOps() | add) & ~remove);
+		}
+		if (add != 0)
+			// a blocked select() won't notice the new interest until it returns
+			wakeup.run();
+	}
+
+	/* package-private */ boolean isReadSuspended() {
+		synchronized (selectionKey) {
+			return readSuspended != 0;
+		}
+	}
+
+	@Override
+	protected void suspendReads(int reason) {
+		synchronized (selectionKey) {
+			boolean wasReading = (readSuspended == 0);
+			readSuspended |= reason;
+			if (wasReading) {
+				try {
+					updateInterestOps(0, SelectionKey.OP_READ);
+				} catch (CancelledKeyException e) {
+					//don't worry about it - session is already closed
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void resumeReads(int reason) {
+		synchronized (selectionKey) {
+			if ((readSuspended & reason) == 0)
+				return;
+
+			readSuspended &= ~reason;
+			if (readSuspended == 0) {
+				// only read again once every reason we stopped for has cleared up
+				try {
+					updateInterestOps(SelectionKey.OP_READ, 0);
+				} catch (CancelledKeyException e) {
+					//don't worry about it - session is already closed
+				}
+			}
+		}
+	}
+
+	private void releaseThrottled() {
+		for (Iterator<ClientSessionNio<T>> iter = throttled.iterator(); iter.hasNext(); ) {
+			ClientSessionNio<T> source = iter.next();
+			iter.remove();
+			source.resumeReads(READ_SUSPENDED_BACKLOG);
+		}
+	}
+
+	@Override
+	protected void throttleFor(ClientSession<T> destination) {
+		ClientSessionNio<T> dest = (ClientSessionNio<T>) destination;
+		if (dest.queuedBytes.get() < dest.highWatermark)
+			return;
+
+		// suspend before becoming visible to a release, or we could miss it
+		suspendReads(READ_SUSPENDED_BACKLOG);
+		dest.throttled.add(this);
+		// destination may have drained before it could see us in throttled
+		if (dest.queuedBytes.get() <= dest.lowWatermark || dest.closeEventsTriggered.get())
+			dest.releaseThrottled();
+	}
+
 	@Override
 	protected Channel getChannel() {
 		return commChn;
 	}
 
+	/**
+	 * Must only be called while holding sendQueue.enter().
+	 * @return 0 if not all queued messages could be sent in a non-blocking
+	 * manner, or 1 if all queued messages have been successfully sent.
+	 */
+	private int flushSendQueue() throws IOException {
+		do {
+			// buffers that we popped earlier but couldn't write stay at the head
+			// of the line. inserting them back into sendQueue would let buffers
+			// from another producer cut in front of them.
+			while (!flushing.isEmpty()) {
+				// write as many queued buffers as we can with a single syscall
+				int batched = 0;
+				for (Iterator<PooledBuffer> iter = flushing.iterator(); iter.hasNext() && batched < gatherBuffers.length; )
+					gatherBuffers[batched++] = iter.next().buffer();
+				try {
+					commChn.write(gatherBuffers, 0, batched);
+				} finally {
+					Arrays.fill(gatherBuffers, 0, batched, null);
+				}
+
+				// release fully written buffers. a partially written buffer stays at the head.
+				PooledBuffer buf;
+				int drained = 0;
+				while ((buf = flushing.peek()) != null && !buf.buffer().hasRemaining()) {
+					flushing.remove();
+					drained += buf.buffer().limit();
+					buf.release();
+					batched--;
+				}
+				queuedBytes.addAndGet(-drained);
+				if (drained != 0 && getModel().forwardRaw())
+					// everything we send to a terminus came through its pipe
+					pipeDrained(drained);
+				if (!throttled.isEmpty() && queuedBytes.get() <= lowWatermark)
+					releaseThrottled();
+				if (batched != 0)
+					// socket send buffer is full
+					return 0;
+			}
+			sendQueue.drainTo(flushing);
+		} while (!flushing.isEmpty());
+		return 1;
+	}
+
 	/**
 	 * @return 0 if not all queued messages could be sent in a non-blocking
 	 * manner, 1 if all queued messages have been successfully sent, -1 if there
@@ -71,51 +226,44 @@ public class ClientSessionNio<T extends LocalRouter<T>> extends ClientSession<T>
 	 * channel is closed.
 	 */
 	/* package-private */ int tryFlushSendQueue() {
-		if (!sendQueue.enter())
-			return -1;
-		Iterator<ByteBuffer> iter = null;
-		ByteBuffer buf = null;
-		try {
+		int result;
+		do {
+			if (!sendQueue.enter())
+				return -1;
 			try {
-				do {
-					iter = sendQueue.pop().iterator();
-					while (iter.hasNext()) {
-						buf = iter.next();
-						if (buf.remaining() == commChn.write(buf)) {
-							getModel().getLocalNode().getBufferCache().tryReturnBuffer(buf);
-							buf = null;
-						} else {
-							return 0;
-						}
-					}
-					iter = null;
-				} while (!sendQueue.willBlock());
-				return 1;
-			} finally {
-				// the reason why we need an inner try-finally is
-				// because this must be executed before the catch clause
-				// so that there aren't dangling ByteBuffers not in
-				// sendQueue that we fail to return to the cache in close().
-				if (buf != null)
-					sendQueue.insert(buf);
-				if (iter != null)
-					while (iter.hasNext())
-						sendQueue.insert(iter.next());
+				result = flushSendQueue();
+			} catch (IOException ex) {
+				// we still hold sendQueue, so nobody else can touch flushing
+				for (PooledBuffer buf : flushing)
+					buf.release();
+				flushing.clear();
 				sendQueue.exit();
+				//does an IOException in write always mean an invalid channel?
+				close(ex.getMessage());
+				return -2;
 			}
-		} catch (IOException ex) {
-			//does an IOException in write always mean an invalid channel?
-			close(ex.getMessage());
-			return -2;
-		}
+			sendQueue.exit();
+			// another thread may have inserted a buffer after we last checked
+			// sendQueue, but then failed to enter() because we were flushing.
+		} while (result == 1 && !sendQueue.willBlock());
+		return result;
 	}
 
 	@Override
 	public boolean close(String reason) {
 		if (super.close(reason)) {
-			// ensure all buffers in sendQueue are returned
-			for (ByteBuffer buf : sendQueue.pop())
-				getModel().getLocalNode().getBufferCache().tryReturnBuffer(buf);
+			// ensure all buffers in sendQueue are released
+			for (PooledBuffer buf : sendQueue.pop())
+				buf.release();
+			if (sendQueue.enter()) {
+				// otherwise, a flush in progress will fail on the closed channel and release its own buffers
+				for (PooledBuffer buf : flushing)
+					buf.release();
+				flushing.clear();
+				sendQueue.exit();
+			}
+			// nothing will be drained from us anymore, so don't leave anyone waiting
+			releaseThrottled();
 
 			return true;
 		}
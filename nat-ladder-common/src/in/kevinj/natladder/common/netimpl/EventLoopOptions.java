@@ -0,0 +1,82 @@
+package in.kevinj.natladder.common.netimpl;
+
+/**
+ * Tunables for ClientManagerNio. The fields are only read when the
+ * ClientManagerNio is constructed, so changing them afterwards has no effect
+ * on a running event loop.
+ */
+public class EventLoopOptions {
+	/**
+	 * Amount of selector threads that new sessions are round robined across.
+	 * Every session is read from and flushed on only the one thread that it
+	 * was assigned to, so ClientSession code that runs on the event loop does
+	 * not have to be thread-safe.
+	 */
+	public int eventLoops = 1;
+
+	/**
+	 * Whether to run a separate acceptor thread that owns every listening and
+	 * connecting channel. Once a connection is established, it is handed off
+	 * to one of the event loops so that connect storms don't have to wait
+	 * behind bulk reads and writes, and vice versa.
+	 */
+	public boolean acceptorThread = false;
+
+	/**
+	 * How many connections the kernel may queue up on a listener before we
+	 * accept them. Once it's full, new SYNs are dropped and the clients back
+	 * off for seconds, so this should cover a reconnect storm after an
+	 * outage. The kernel may cap it further (e.g. net.core.somaxconn on
+	 * Linux), and 0 or less means the JDK's default of 50.
+	 */
+	public int acceptBacklog = 1024;
+
+	/**
+	 * How many connections to accept from a listener each time it's ready,
+	 * before the event loop moves on to its other ready keys.
+	 */
+	public int maxAcceptsPerSelect = 64;
+
+	/**
+	 * Once a session has at least this many bytes queued up to send, the
+	 * sessions that forward messages to it stop being read from. This keeps a
+	 * slow terminus or relay link from piling up direct buffers until we run
+	 * out of direct memory.
+	 */
+	public int sendQueueHighWatermark = 1024 * 1024;
+
+	/**
+	 * Sessions that were throttled by a backed up session are read from again
+	 * once its send queue drains to this many bytes or less.
+	 */
+	public int sendQueueLowWatermark = 256 * 1024;
+
+	/**
+	 * How many bytes to read from one session before moving on to the next
+	 * ready one. A session that still has more to read afterwards is read
+	 * from again once every other ready session had its turn, so one bulk
+	 * transfer can't hold up small requests on the same event loop. Use
+	 * Integer.MAX_VALUE to read each session until it runs dry.
+	 */
+	public int readBudget = 64 * 1024;
+
+	/**
+	 * For latency sensitive traffic, how many microseconds an event loop
+	 * keeps polling its selector after it last had something to do, instead
+	 * of blocking in select() and waiting to be woken up. Polling backs off
+	 * to yielding and then to short parks the longer it stays quiet, but it
+	 * still costs CPU, so leave it at 0 unless each event loop can have a
+	 * core to itself.
+	 */
+	public int busyPollMicros = 0;
+
+	/**
+	 * Whether each event loop drives a timer wheel of its own from its
+	 * selector loop, instead of its sessions scheduling their timeouts on the
+	 * local node's timer thread. Keep-alive pings and timeouts then run on the
+	 * same thread that reads from the session they belong to, and never race
+	 * with it. Each loop also sweeps its control links for idle ones, so an
+	 * otherwise idle loop still wakes up about once a second.
+	 */
+	public boolean timerInEventLoop = false;
+}
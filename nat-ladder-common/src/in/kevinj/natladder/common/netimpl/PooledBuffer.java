@@ -0,0 +1,103 @@
+package in.kevinj.natladder.common.netimpl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A reference counted handle to a ByteBuffer. Every holder of a reference
+ * must release() it exactly once, and anyone that keeps the buffer around
+ * after a call returns (e.g. a send queue) must retain() it first. Once the
+ * last reference is released, a buffer that was taken from a BufferCache is
+ * returned to it.
+ *
+ * Duplicates share the reference count of the buffer they came from, but have
+ * their own position and limit. That way the same bytes can be queued up to
+ * several destinations without copying them.
+ *
+ * retain() and release() are thread safe. The ByteBuffer itself is not.
+ */
+public final class PooledBuffer {
+	private static final AtomicIntegerFieldUpdater<PooledBuffer> REF_CNT = AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refCnt");
+
+	// null if buf does not belong to a pool
+	private final BufferCache cache;
+	// null if nobody is tallying what was taken from the pool
+	private final BufferAccount account;
+	// owner of the reference count, and the buffer that is returned to the cache
+	private final PooledBuffer root;
+	private final ByteBuffer buf;
+	private volatile int refCnt;
+
+	private PooledBuffer(BufferCache cache, BufferAccount account, ByteBuffer buf) {
+		this.cache = cache;
+		this.account = account;
+		this.root = this;
+		this.buf = buf;
+		this.refCnt = 1;
+	}
+
+	private PooledBuffer(PooledBuffer root, ByteBuffer view) {
+		this.cache = root.cache;
+		this.account = root.account;
+		this.root = root;
+		this.buf = view;
+	}
+
+	/* package-private */ static PooledBuffer pooled(BufferCache cache, BufferAccount account, ByteBuffer buf) {
+		if (account != null)
+			account.taken(buf.capacity());
+		return new PooledBuffer(cache, account, buf);
+	}
+
+	/**
+	 * @return a handle with one reference to a buffer that is not pooled, so
+	 * that releasing it just leaves it for the garbage collector.
+	 */
+	public static PooledBuffer wrap(ByteBuffer buf) {
+		return new PooledBuffer(null, null, buf);
+	}
+
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
+	public PooledBuffer retain() {
+		int count;
+		do {
+			count = root.refCnt;
+			if (count <= 0)
+				throw new IllegalStateException("Buffer was already released");
+		} while (!REF_CNT.compareAndSet(root, count, count + 1));
+		return this;
+	}
+
+	/**
+	 * @return true if this was the last reference and the buffer was given
+	 * back to its cache.
+	 */
+	public boolean release() {
+		int count = REF_CNT.decrementAndGet(root);
+		if (count > 0)
+			return false;
+		if (count < 0)
+			throw new IllegalStateException("Buffer was released too many times");
+
+		if (account != null)
+			account.returned(root.buf.capacity());
+		if (cache != null)
+			cache.tryReturnBuffer(root.buf);
+		return true;
+	}
+
+	public int refCnt() {
+		return root.refCnt;
+	}
+
+	/**
+	 * @return a view of the same bytes with an independent position and
+	 * limit. no reference is added, so retain() it if it must outlive ours.
+	 */
+	public PooledBuffer duplicate() {
+		return new PooledBuffer(root, buf.duplicate());
+	}
+}
@@ -0,0 +1,150 @@
+package in.kevinj.natladder.common.netimpl;
+
+import in.kevinj.natladder.common.util.PacketBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a packet straight into direct buffers from a BufferCache. When a
+ * packet outgrows its buffer, we chain on another pooled buffer instead of
+ * copying everything we wrote so far, and the segments are only gathered up
+ * once when the packet is sent.
+ *
+ * Each thread reuses one instance, so the builder itself and its chain list
+ * aren't allocated per packet. Every packet still allocates a PooledBuffer
+ * handle for its head buffer, and a node when it's inserted into the send
+ * queue.
+ */
+/* package-private */ final class PooledPacketBuilder extends PacketBuilder {
+	private static final int PREFIX_LENGTH = Integer.SIZE / 8 + Short.SIZE / 8;
+
+	private static final ThreadLocal<PooledPacketBuilder> cached = new ThreadLocal<PooledPacketBuilder>() {
+		@Override
+		protected PooledPacketBuilder initialValue() {
+			return new PooledPacketBuilder();
+		}
+	};
+
+	private ClientSession<?> session;
+	private BufferCache cache;
+	private BufferAccount account;
+	private PooledBuffer head;
+	// buffers that the packet grew into after head, in order
+	private final List<PooledBuffer> chain;
+	// not yet any thread's cached builder
+	private boolean spare;
+
+	private PooledPacketBuilder() {
+		chain = new ArrayList<PooledBuffer>();
+	}
+
+	/**
+	 * The returned builder must be sent before another packet is started on
+	 * the same thread, otherwise that packet gets a builder of its own.
+	 */
+	public static PooledPacketBuilder begin(ClientSession<?> session, BufferCache cache, BufferAccount account, int initialMessageLength) {
+		PooledPacketBuilder builder = cached.get();
+		if (builder.session != null) {
+			// still building a packet on this thread
+			builder = new PooledPacketBuilder();
+			builder.spare = true;
+		}
+
+		// don't mark the builder in use until we actually have a buffer
+		PooledBuffer head = cache.takePooledBuffer(PREFIX_LENGTH + initialMessageLength, account);
+		builder.session = session;
+		builder.cache = cache;
+		builder.account = account;
+		builder.head = head;
+		builder.reset(head.buffer());
+		return builder;
+	}
+
+	@Override
+	protected void initialize(ByteBuffer buf) {
+		// reserve space for length
+		buf.position(Integer.SIZE / 8);
+	}
+
+	@Override
+	protected ByteBuffer grow(ByteBuffer buf, int size) {
+		boolean grown = false;
+		try {
+			PooledBuffer next = cache.takePooledBuffer(Math.max(size, BufferCache.DEFAULT_BUFFER_SIZE), account);
+			chain.add(next);
+			grown = true;
+			return next.buffer();
+		} finally {
+			if (!grown)
+				// the packet can't be finished, so nobody will send() it
+				recycle();
+		}
+	}
+
+	@Override
+	protected void commit(ByteBuffer buf) {
+		ClientSession<?> destination = session;
+		try {
+			if (chain.isEmpty()) {
+				// fill in length
+				buf.putInt(0, buf.position() - PREFIX_LENGTH);
+				destination.writeMessage(head);
+			} else {
+				// the send queue needs each packet in one buffer
+				int length = head.buffer().position();
+				for (int i = 0; i < chain.size(); i++)
+					length += chain.get(i).buffer().position();
+
+				PooledBuffer whole = cache.takePooledBuffer(length, account);
+				try {
+					ByteBuffer wholeBuf = whole.buffer();
+					head.buffer().flip();
+					wholeBuf.put(head.buffer());
+					for (int i = 0; i < chain.size(); i++) {
+						ByteBuffer segment = chain.get(i).buffer();
+						segment.flip();
+						wholeBuf.put(segment);
+					}
+					wholeBuf.putInt(0, length - PREFIX_LENGTH);
+					destination.writeMessage(whole);
+				} finally {
+					whole.release();
+				}
+			}
+		} finally {
+			recycle();
+		}
+	}
+
+	/**
+	 * Gives back the packet's buffers and makes us available for the next
+	 * packet.
+	 */
+	private void recycle() {
+		session = null;
+		try {
+			head.release();
+			for (int i = 0; i < chain.size(); i++)
+				chain.get(i).release();
+		} finally {
+			head = null;
+			chain.clear();
+			cache = null;
+			account = null;
+		}
+
+		if (spare) {
+			// if the cached builder is still in use, it was most likely
+			// abandoned by a caller that threw before it could send(). take
+			// its place so that this thread doesn't allocate a spare for every
+			// packet from now on.
+			PooledPacketBuilder builder = cached.get();
+			if (builder.session != null) {
+				spare = false;
+				cached.set(this);
+			}
+		}
+	}
+}
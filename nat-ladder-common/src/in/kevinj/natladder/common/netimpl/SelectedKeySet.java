@@ -0,0 +1,125 @@
+package in.kevinj.natladder.common.netimpl;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stands in for the HashSet that the JDK's selectors put ready keys into, so
+ * that a select() doesn't have to hash anything and the event loop can walk
+ * the ready keys without allocating an iterator.
+ *
+ * Only the selector's add() and the event loop's own reads are supported.
+ * contains() and remove() always say no, so a key the selector reports twice
+ * in one select() would be handled twice. Handlers check that their key is
+ * still valid and ready anyway.
+ */
+/* package-private */ final class SelectedKeySet extends AbstractSet<SelectionKey> {
+	private static final Logger LOG = Logger.getLogger(SelectedKeySet.class.getName());
+	// every event loop would fail the same way, so only say so once
+	private static final AtomicBoolean fallbackLogged = new AtomicBoolean(false);
+
+	private SelectionKey[] keys;
+	private int size;
+
+	private SelectedKeySet() {
+		keys = new SelectionKey[1024];
+	}
+
+	/**
+	 * @return the set that the selector will now put its ready keys into, or
+	 * null if the selector's implementation doesn't let us in (e.g. the JVM
+	 * wasn't started with --add-opens java.base/sun.nio.ch=ALL-UNNAMED), in
+	 * which case selectedKeys() should be used as usual.
+	 */
+	public static SelectedKeySet install(Selector selector) {
+		try {
+			Class<?> impl = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+			if (!impl.isAssignableFrom(selector.getClass()))
+				return null;
+
+			Field selectedKeys = impl.getDeclaredField("selectedKeys");
+			Field publicSelectedKeys = impl.getDeclaredField("publicSelectedKeys");
+			selectedKeys.setAccessible(true);
+			publicSelectedKeys.setAccessible(true);
+			SelectedKeySet set = new SelectedKeySet();
+			selectedKeys.set(selector, set);
+			publicSelectedKeys.set(selector, set);
+			return set;
+		} catch (Exception ex) {
+			// includes InaccessibleObjectException on newer JVMs
+			Level level = fallbackLogged.compareAndSet(false, true) ? Level.INFO : Level.FINE;
+			LOG.log(level, "Could not replace the selected key set of {0} ({1}). Falling back to selectedKeys(), which allocates on every select. Start the JVM with --add-opens java.base/sun.nio.ch=ALL-UNNAMED to avoid this.", new Object[] { selector.getClass().getName(), ex.toString() });
+			return null;
+		}
+	}
+
+	@Override
+	public boolean add(SelectionKey key) {
+		if (key == null)
+			return false;
+
+		if (size == keys.length)
+			keys = Arrays.copyOf(keys, size << 1);
+		keys[size++] = key;
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return false;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return false;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	public SelectionKey get(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * Lets go of every key, so that closed channels can be collected.
+	 */
+	public void reset() {
+		Arrays.fill(keys, 0, size, null);
+		size = 0;
+	}
+
+	@Override
+	public Iterator<SelectionKey> iterator() {
+		return new Iterator<SelectionKey>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public SelectionKey next() {
+				if (next >= size)
+					throw new NoSuchElementException();
+				return keys[next++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,80 @@
+package in.kevinj.natladder.common.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cheap, thread-safe recorder of durations. Samples are counted into
+ * power-of-two buckets, so percentiles are only accurate to within a factor
+ * of two, but recording a sample never allocates or takes a lock.
+ *
+ * All methods of this class are thread safe.
+ */
+public class LatencyStats {
+	private final AtomicLong count;
+	private final AtomicLong totalNanos;
+	private final AtomicLong maxNanos;
+	// bucket i counts samples in [2^(i-1), 2^i) nanoseconds. bucket 0 counts 0.
+	private final AtomicLongArray buckets;
+
+	public LatencyStats() {
+		count = new AtomicLong(0);
+		totalNanos = new AtomicLong(0);
+		maxNanos = new AtomicLong(0);
+		buckets = new AtomicLongArray(Long.SIZE);
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			// System.nanoTime() is monotonic, but be lenient to callers mixing clocks
+			nanos = 0;
+
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos));
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMean(TimeUnit unit) {
+		long n = count.get();
+		return n == 0 ? 0 : unit.convert(totalNanos.get() / n, TimeUnit.NANOSECONDS);
+	}
+
+	public long getMax(TimeUnit unit) {
+		return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param percentile a value in (0, 100]
+	 * @return the upper bound of the bucket that the given percentile of
+	 * samples falls into.
+	 */
+	public long getPercentile(double percentile, TimeUnit unit) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long threshold = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= threshold)
+				return unit.convert(i == 0 ? 0 : Math.min(1L << i, maxNanos.get()), TimeUnit.NANOSECONDS);
+		}
+		return getMax(unit);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount()
+			+ ", mean=" + getMean(TimeUnit.MICROSECONDS) + "us"
+			+ ", p99=" + getPercentile(99, TimeUnit.MICROSECONDS) + "us"
+			+ ", max=" + getMax(TimeUnit.MICROSECONDS) + "us";
+	}
+}
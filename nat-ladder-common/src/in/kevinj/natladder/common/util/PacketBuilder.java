@@ -9,7 +9,21 @@ public abstract class PacketBuilder {
 	private ByteBuffer buf;
 
 	public PacketBuilder(int initialMessageLength) {
-		buf = ByteBuffer.allocate(initialMessageLength);
+		reset(ByteBuffer.allocate(initialMessageLength));
+	}
+
+	/**
+	 * For builders that supply their own buffers through reset().
+	 */
+	protected PacketBuilder() {
+	}
+
+	/**
+	 * Starts a new packet in buf. Lets a subclass reuse the same builder for
+	 * any number of packets.
+	 */
+	protected void reset(ByteBuffer buf) {
+		this.buf = buf;
 		initialize(buf);
 	}
 
@@ -17,13 +31,21 @@ public abstract class PacketBuilder {
 		// no-op
 	}
 
+	/**
+	 * Called when buf does not have room for another size bytes.
+	 * @return a buffer with at least size bytes remaining to continue writing
+	 * the packet to. by default, everything is copied into a larger buffer.
+	 */
+	protected ByteBuffer grow(ByteBuffer buf, int size) {
+		ByteBuffer newBuf = ByteBuffer.allocate(buf.limit() + Math.max(buf.limit() / 2, size));
+		buf.flip();
+		newBuf.put(buf);
+		return newBuf;
+	}
+
 	private void ensureCapacity(int size) {
-		if (buf.remaining() < size) {
-			ByteBuffer newBuf = ByteBuffer.allocate(buf.limit() + Math.max(buf.limit() / 2, size));
-			buf.flip();
-			newBuf.put(buf);
-			buf = newBuf;
-		}
+		if (buf.remaining() < size)
+			buf = grow(buf, size);
 	}
 
 	public PacketBuilder writeBytes(byte[] bs, int offset, int length) {
@@ -89,22 +111,26 @@ public abstract class PacketBuilder {
 		byte[] encoded = str.getBytes(utf8);
 		int copied = Math.min(encoded.length, fixedLength);
 		writeBytes(encoded, 0, copied);
-		// pad with NUL characters. buf should have 0s in these
-		// positions (retaining default values) since we don't
-		// reset(), clear(), flip(), rewind(), or position() back.
-		buf.position(buf.position() + fixedLength - copied);
+		// pad with NUL characters. buf may be recycled, so don't count
+		// on it still having 0s in these positions.
+		for (int i = copied; i < fixedLength; i++)
+			buf.put((byte) 0);
 		return this;
 	}
 
 	public PacketBuilder writeString(String str) {
 		if (str == null) str = "";
 
-		return writeShort((short) str.length()).writeBytes(str.getBytes(utf8));
+		// the length prefix counts encoded bytes, not chars
+		byte[] encoded = str.getBytes(utf8);
+		return writeShort((short) encoded.length).writeBytes(encoded);
 	}
 
 	protected abstract void commit(ByteBuffer buf);
 
 	public void send() {
-		commit(buf);
+		ByteBuffer committed = buf;
+		buf = null;
+		commit(committed);
 	}
 }
\ No newline at end of file
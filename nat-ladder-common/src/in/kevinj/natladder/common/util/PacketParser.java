@@ -12,6 +12,13 @@ public abstract class PacketParser {
 		this.buf = buf;
 	}
 
+	/**
+	 * @return the packet body, positioned at the next unread byte.
+	 */
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
 	public void readBytes(byte[] bs, int offset, int length) {
 		buf.get(bs, offset, length);
 	}
@@ -2,15 +2,14 @@ package in.kevinj.natladder.common.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
@@ -18,9 +17,7 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This implementation employs an efficient single-threaded algorithm based on
@@ -31,27 +28,74 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * <a href="http://www.cse.wustl.edu/~cdgill/courses/cs6874/TimingWheels.ppt">
  * here</a>.
  *
+ * Time is kept with System.nanoTime(), so changes to the wall clock don't
+ * shift any deadlines, and the worker parks between ticks with
+ * LockSupport.parkNanos() so that ticks can be as short as 100 microseconds.
+ *
  * Note that the actual start of execution time of a scheduled task is only
  * accurate to the value passed to the constructor's tickDuration argument.
  * Tasks will never execute before their scheduled time. They will usually
  * execute within the specified tickDuration after the scheduled time, unless
  * there was a computationally heavy task being executed before it that
- * temporarily delayed the start of the task's tick on the wheel.
+ * temporarily delayed the start of the task's tick on the wheel. If tasks
+ * may be slow, pass a taskExecutor to the constructor so that due tasks are
+ * only dispatched from the wheel, and watch getTickLag() to see if the wheel
+ * is falling behind.
+ *
+ * Only the worker thread ever touches the wheel. Scheduling and canceling a
+ * task just push it onto a lock-free queue, and the worker moves new tasks
+ * into their buckets and unlinks canceled ones at the start of each tick.
+ * Buckets are intrusive doubly linked lists, so both are O(1).
+ *
+ * With more than one level, tasks that are due after the finest wheel's
+ * revolution wait in coarser wheels, where each bucket spans a whole
+ * revolution of the wheel below it. Whenever a wheel wraps around, the next
+ * bucket of the wheel above it is cascaded down. That way, the bucket that
+ * is expired on each tick only holds tasks that are actually due, instead
+ * of also every long delay task that hashed to it and is still waiting out
+ * its remaining revolutions.
+ *
+ * The wheel can also be driven by another loop instead of its own worker
+ * thread, e.g. a selector loop that waits for nanosUntilNextTick() at most
+ * and then calls runDueTicks(). Tasks then run on that loop's thread.
  * @author Kevin Jin
  */
 public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
-	private final int millisPerTick;
+	// so that a flood of new tasks can't hold up the tick that they arrive in
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private static final long MIN_TICK_DURATION = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final long nanosPerTick;
+	// null if the wheel is driven by runDueTicks()
 	private final Thread workerThread;
-	private final Set<HashedWheelFuture<?>>[] buckets;
+	private final Worker worker;
+	private final Runnable wakeup;
+	// null to run due tasks on the thread that runs the tick
+	private final Executor taskExecutor;
+	// wheels[0] is the wheel that tasks are run from. a bucket in wheels[k]
+	// spans slotTicks[k] ticks, i.e. a full revolution of wheels[k - 1].
+	private final HashedWheelBucket[][] wheels;
+	private final long[] slotTicks;
+	private final Queue<HashedWheelFuture<?>> pendingTasks;
+	private final Queue<HashedWheelFuture<?>> canceledTasks;
 	private final AtomicInteger queuedTaskCount;
+	// for a driven wheel, whether its owner may be waiting until plannedTick
+	// before it calls runDueTicks() again
+	private volatile boolean driverWaiting;
+	private volatile long plannedTick;
 	private volatile boolean shuttingDown;
 	private volatile boolean shutdownImmediately;
 	private volatile boolean terminated;
-	private final Lock readLock, writeLock;
-	private int wheelCursor;
-	private long lastExecuted;
 
-	private abstract class HashedWheelFuture<V> implements ScheduledFuture<V> {
+	// how late each tick started
+	private final LatencyStats tickLag;
+	// only written by whoever runs the ticks
+	private volatile long ticks, tasksExpired, maxTasksPerTick;
+	// canceled tasks that haven't been unlinked from the wheel yet
+	private final AtomicInteger unreapedCanceledCount;
+
+	private abstract class HashedWheelFuture<V> implements ScheduledFuture<V>, Runnable {
 		protected static final int
 			STATE_CANCELED = -1,
 			STATE_SCHEDULED = 0,
@@ -65,10 +109,17 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 		private final long periodLength;
 		private final boolean fixedRate;
 		private int periodNo;
-		private long remainingRevolutions;
-		private int bucket;
 		private long scheduledExecutionTime;
 
+		// only accessed by the worker thread
+		private long deadlineTick;
+		private long remainingRevolutions;
+		private HashedWheelBucket bucket;
+		private HashedWheelFuture<?> next, prev;
+		// for cancel(true). null if not running, or if it's a thread that
+		// drives the wheel and must not be interrupted.
+		private volatile Thread runner;
+
 		public HashedWheelFuture(long submitTime, long delay, long period, boolean fixedRate) {
 			this.state = new AtomicInteger(STATE_SCHEDULED);
 			this.startTime = submitTime;
@@ -81,25 +132,29 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 
 		@Override
 		public long getDelay(TimeUnit unit) {
-			return unit.convert(initDelay, TimeUnit.MILLISECONDS) - System.currentTimeMillis();
+			return unit.convert(scheduledExecutionTime - System.nanoTime(), TimeUnit.NANOSECONDS);
 		}
 
 		@Override
 		public int compareTo(Delayed arg0) {
-			return (int) (initDelay - arg0.getDelay(TimeUnit.MILLISECONDS));
+			long diff = getDelay(TimeUnit.NANOSECONDS) - arg0.getDelay(TimeUnit.NANOSECONDS);
+			return diff < 0 ? -1 : diff > 0 ? 1 : 0;
 		}
 
 		@Override
 		public boolean cancel(boolean mayInterruptIfRunning) {
 			boolean result;
 			if (state.compareAndSet(STATE_SCHEDULED, STATE_CANCELED)) {
-				buckets[bucket].remove(this);
+				// the worker unlinks us from our bucket on its next tick
+				unreapedCanceledCount.incrementAndGet();
+				canceledTasks.add(this);
 				queuedTaskCount.decrementAndGet();
 				result = true;
 			} else if (state.compareAndSet(STATE_RUNNING, STATE_CANCELED)) {
 				queuedTaskCount.decrementAndGet();
-				if (mayInterruptIfRunning) {
-					workerThread.interrupt();
+				Thread t = runner;
+				if (mayInterruptIfRunning && t != null) {
+					t.interrupt();
 					result = true;
 				} else {
 					result = false;
@@ -133,14 +188,14 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 		@Override
 		public V get(long arg0, TimeUnit arg1) throws InterruptedException,
 				ExecutionException, TimeoutException {
-			long submitTime = System.currentTimeMillis();
+			long submitTime = System.nanoTime();
 
 			int status = state.get();
 			if (status == STATE_CANCELED)
 				throw new CancellationException();
 			if (status == STATE_EXECUTED)
 				return getResult();
-			boolean timedOut = waitForResult(submitTime + arg1.toMillis(arg0));
+			boolean timedOut = waitForResult(submitTime + arg1.toNanos(arg0));
 
 			if (timedOut)
 				throw new TimeoutException();
@@ -180,16 +235,32 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 			}
 		}
 
+		/**
+		 * @param deadline in System.nanoTime() time.
+		 */
 		private boolean waitForResult(long deadline) throws InterruptedException {
-			long now;
+			long remaining;
 			boolean timedOut = false;
 			synchronized(this) {
-				while (!isDone() && !(timedOut = ((now = System.currentTimeMillis()) >= deadline)))
-					wait(deadline - now);
+				while (!isDone() && !(timedOut = ((remaining = deadline - System.nanoTime()) <= 0)))
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
 			}
 			return timedOut;
 		}
 
+		@Override
+		public void run() {
+			if (workerThread != null || taskExecutor != null)
+				runner = Thread.currentThread();
+			try {
+				if (!runExpireTask())
+					return;
+			} finally {
+				runner = null;
+			}
+			executed();
+		}
+
 		private void executed() {
 			if (periodLength < 0 || isShutdown()) {
 				if (state.compareAndSet(STATE_RUNNING, STATE_EXECUTED)) {
@@ -200,13 +271,14 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 				} else {
 					assert isCancelled();
 				}
-			} else if (!isCancelled()) {
+			} else if (state.compareAndSet(STATE_RUNNING, STATE_SCHEDULED)) {
+				// otherwise, we were canceled while running
 				if (fixedRate) {
 					periodNo++;
 					scheduledExecutionTime = startTime + initDelay + periodLength * periodNo;
 					schedule(this);
 				} else {
-					scheduledExecutionTime = System.currentTimeMillis() + periodLength;
+					scheduledExecutionTime = System.nanoTime() + periodLength;
 					schedule(this);
 				}
 			}
@@ -327,64 +399,251 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 		}
 	}
 
+	private class HashedWheelBucket {
+		private HashedWheelFuture<?> head, tail;
+
+		public void add(HashedWheelFuture<?> future) {
+			assert future.bucket == null;
+			future.bucket = this;
+			if (head == null) {
+				head = tail = future;
+			} else {
+				tail.next = future;
+				future.prev = tail;
+				tail = future;
+			}
+		}
+
+		public void remove(HashedWheelFuture<?> future) {
+			assert future.bucket == this;
+			HashedWheelFuture<?> next = future.next;
+			if (future.prev != null)
+				future.prev.next = next;
+			if (next != null)
+				next.prev = future.prev;
+
+			if (future == head) {
+				if (future == tail) {
+					tail = null;
+					head = null;
+				} else {
+					head = next;
+				}
+			} else if (future == tail) {
+				tail = future.prev;
+			}
+			future.prev = null;
+			future.next = null;
+			future.bucket = null;
+		}
+
+		/**
+		 * @return the amount of tasks that were due.
+		 */
+		public int expireTasks(long tickScheduledExecute) {
+			int expired = 0;
+			HashedWheelFuture<?> future = head;
+			while (future != null && !shutdownImmediately) {
+				HashedWheelFuture<?> next = future.next;
+				if (future.remainingRevolutions <= 0) {
+					remove(future);
+					assert future.scheduledExecutionTime <= tickScheduledExecute;
+					expired++;
+					if (taskExecutor == null) {
+						future.run();
+					} else {
+						try {
+							taskExecutor.execute(future);
+						} catch (RejectedExecutionException e) {
+							//e.g. taskExecutor was shut down before us
+							future.run();
+						}
+					}
+				} else if (future.isCancelled()) {
+					remove(future);
+				} else {
+					future.remainingRevolutions--;
+				}
+				future = next;
+			}
+			return expired;
+		}
+
+		public void cascadeTasks(Worker worker) {
+			HashedWheelFuture<?> future = head;
+			head = tail = null;
+			while (future != null) {
+				HashedWheelFuture<?> next = future.next;
+				future.prev = null;
+				future.next = null;
+				future.bucket = null;
+				if (future.remainingRevolutions > 0) {
+					//only in the coarsest wheel
+					future.remainingRevolutions--;
+					add(future);
+				} else if (!future.isCancelled()) {
+					worker.place(future);
+				}
+				future = next;
+			}
+		}
+
+		public void clear(List<Runnable> notRun) {
+			Runnable r;
+			for (HashedWheelFuture<?> future = head; future != null; ) {
+				HashedWheelFuture<?> next = future.next;
+				remove(future);
+				if (!future.hasCommencedExecution() && (r = future.getRunnableTask()) != null)
+					notRun.add(r);
+				future = next;
+			}
+		}
+	}
+
 	private class Worker implements Runnable {
 		private long startTime;
-		private int tick;
+		private long tick;
 
 		/**
 		 * 
 		 * @return the scheduled start time of execution of this tick, or -1
-		 * if 
+		 * if the executor has shut down.
 		 */
 		private long syncWithTick() {
 			if (shuttingDown && queuedTaskCount.get() == 0 || shutdownImmediately)
 				return -1;
-			if (tick == Integer.MAX_VALUE) {
-				startTime += tick * millisPerTick;
-				tick = 0;
-			}
-			tick++;
-			long scheduledTime = startTime + tick * millisPerTick;
+			long scheduledTime = startTime + (tick + 1) * nanosPerTick;
 			long sleepTime;
-			while ((sleepTime = scheduledTime - System.currentTimeMillis()) > 0) {
-				try {
-					Thread.sleep(sleepTime);
-				} catch (InterruptedException e) {
+			while ((sleepTime = scheduledTime - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, sleepTime);
+				if (Thread.interrupted()) {
 					if (shutdownImmediately)
 						return -1;
 					//otherwise, it's probably from when Future.cancel(true) was
-					//called. just clear the interrupted status.
+					//called. parkNanos would keep returning right away, so clear
+					//the interrupted status.
 				}
 			}
 			return scheduledTime;
 		}
 
-		@Override
-		public void run() {
-			lastExecuted = startTime = System.currentTimeMillis();
-			long tickScheduledExecute;
-			while ((tickScheduledExecute = syncWithTick()) != -1) {
-				Iterator<HashedWheelFuture<?>> iter;
-				writeLock.lock();
-				try {
-					wheelCursor = (wheelCursor + 1) % buckets.length;
-					iter = buckets[wheelCursor].iterator();
-					lastExecuted = tickScheduledExecute;
-				} finally {
-					writeLock.unlock();
-				}
-				while (iter.hasNext() && !shutdownImmediately) {
-					HashedWheelFuture<?> future = iter.next();
-					if (future.remainingRevolutions > 0) {
-						future.remainingRevolutions--;
-					} else {
-						iter.remove();
-						assert future.scheduledExecutionTime <= tickScheduledExecute;
-						if (future.runExpireTask())
-							future.executed();
+		private void processCanceledTasks() {
+			HashedWheelFuture<?> future;
+			while ((future = canceledTasks.poll()) != null) {
+				unreapedCanceledCount.decrementAndGet();
+				//may have already been unlinked by expireTasks, or never made
+				//it out of pendingTasks
+				if (future.bucket != null)
+					future.bucket.remove(future);
+			}
+		}
+
+		private void transferPendingTasks() {
+			HashedWheelFuture<?> future;
+			for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (future = pendingTasks.poll()) != null; i++) {
+				if (future.isCancelled())
+					continue;
+
+				future.deadlineTick = deadlineTick(future);
+				place(future);
+			}
+		}
+
+		public long deadlineTick(HashedWheelFuture<?> future) {
+			//tick n executes at startTime + (n + 1) * nanosPerTick, so find
+			//the first tick that starts no earlier than the task is due.
+			return (future.scheduledExecutionTime - startTime + nanosPerTick - 1) / nanosPerTick - 1;
+		}
+
+		/**
+		 * @return the first tick that has a bucket to expire or cascade, or
+		 * Long.MAX_VALUE if every bucket is empty. ticks before it would do
+		 * nothing, so they don't have to run on time.
+		 */
+		public long nextBusyTick() {
+			long busy = Long.MAX_VALUE;
+			for (int level = 0; level < wheels.length; level++) {
+				HashedWheelBucket[] wheel = wheels[level];
+				//the first slot of this wheel that wasn't expired or cascaded yet
+				long slot = (tick + slotTicks[level] - 1) / slotTicks[level];
+				for (int i = 0; i < wheel.length && (slot + i) * slotTicks[level] < busy; i++) {
+					if (wheel[(int) ((slot + i) % wheel.length)].head != null) {
+						busy = (slot + i) * slotTicks[level];
+						break;
 					}
 				}
 			}
+			return busy;
+		}
+
+		public void place(HashedWheelFuture<?> future) {
+			//if we're already past the task's tick, run it in the current one
+			long due = Math.max(future.deadlineTick, tick);
+			int level = 0;
+			while (level < wheels.length - 1 && due - tick >= slotTicks[level + 1])
+				level++;
+
+			HashedWheelBucket[] wheel = wheels[level];
+			long dueSlot = due / slotTicks[level];
+			if (level == 0)
+				//the bucket for the current tick is still going to be expired
+				future.remainingRevolutions = (due - tick) / wheel.length;
+			else
+				//but the bucket for the current slot was already cascaded
+				future.remainingRevolutions = (dueSlot - tick / slotTicks[level] - 1) / wheel.length;
+			wheel[(int) (dueSlot % wheel.length)].add(future);
+		}
+
+		private void cascade() {
+			//coarsest first, so that anything it drops into a finer wheel's
+			//current bucket is cascaded again in the same tick
+			for (int level = wheels.length - 1; level > 0; level--)
+				if (tick % slotTicks[level] == 0)
+					wheels[level][(int) (tick / slotTicks[level] % wheels[level].length)].cascadeTasks(this);
+		}
+
+		private void runTick(long tickScheduledExecute) {
+			tickLag.record(System.nanoTime() - tickScheduledExecute);
+			processCanceledTasks();
+			cascade();
+			transferPendingTasks();
+			int expired = wheels[0][(int) (tick % wheels[0].length)].expireTasks(tickScheduledExecute);
+			tick++;
+
+			ticks++;
+			tasksExpired += expired;
+			if (expired > maxTasksPerTick)
+				maxTasksPerTick = expired;
+		}
+
+		public long nextTickTime() {
+			return startTime + (tick + 1) * nanosPerTick;
+		}
+
+		public void runDueTicks(long now) {
+			if (shuttingDown && queuedTaskCount.get() == 0 || shutdownImmediately) {
+				terminated = true;
+				return;
+			}
+			if (queuedTaskCount.get() == 0) {
+				//tasks are counted before they're queued, so the wheel only has
+				//canceled tasks in it. skip ahead instead of running empty ticks.
+				tick = Math.max(tick, (now - startTime) / nanosPerTick);
+				processCanceledTasks();
+				return;
+			}
+
+			long tickScheduledExecute;
+			while (!shutdownImmediately && (tickScheduledExecute = nextTickTime()) - now <= 0)
+				runTick(tickScheduledExecute);
+		}
+
+		@Override
+		public void run() {
+			startTime = System.nanoTime();
+			long tickScheduledExecute;
+			while ((tickScheduledExecute = syncWithTick()) != -1)
+				runTick(tickScheduledExecute);
 			terminated = true;
 		}
 	}
@@ -396,126 +655,230 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 	 * in each bucket, which usually results in higher overhead per tick, as
 	 * each task in a bucket has to be checked. The higher the number, the more
 	 * memory will be used. Generally, higher loads require more buckets.
+	 * @param levels the amount of wheels. 1 is a single hashed wheel, where
+	 * tasks that are due more than a rotation away are checked every
+	 * rotation. Otherwise, a task is moved down at most once per level, and
+	 * only tasks that are due more than buckets^levels ticks away are
+	 * checked more often than that.
 	 * @param tickDuration the rate at which bucket executions are performed.
 	 * Directly proportional with accuracy and inversely proportion with CPU
-	 * efficiency.
+	 * efficiency. Must be at least 100 microseconds.
 	 * @param unit the time unit that tickDuration is in.
+	 * @param taskExecutor if not null, due tasks are dispatched to it instead
+	 * of being run on the thread that runs the tick, so that a slow task
+	 * can't delay the ticks after it. Tasks that it rejects are still run on
+	 * the ticking thread.
+	 * @param wakeup if null, the wheel is run by its own worker thread.
+	 * Otherwise, no thread is started and the owner of the executor has to
+	 * call runDueTicks() from a single thread. wakeup is run whenever a task
+	 * is scheduled that is due before the owner planned to tick again, e.g.
+	 * while it's blocked indefinitely because nanosUntilNextTick() was -1.
 	 */
-	@SuppressWarnings("unchecked")
-	public ScheduledHashedWheelExecutor(int buckets, long tickDuration, TimeUnit unit) {
+	public ScheduledHashedWheelExecutor(int buckets, int levels, long tickDuration, TimeUnit unit, Executor taskExecutor, Runnable wakeup) {
 		if (buckets <= 0)
 			throw new IllegalArgumentException("buckets must be positive");
-		millisPerTick = (int) unit.toMillis(tickDuration);
-		if (millisPerTick <= 0)
-			throw new IllegalArgumentException("tickDuration in milliseconds must be positive");
-		workerThread = new Thread(new Worker(), "hashed-wheel-timer-worker-thread");
-		this.buckets = new Set[buckets];
-		for (int i = 0; i < buckets; i++)
-			this.buckets[i] = Collections.newSetFromMap(new ConcurrentHashMap<HashedWheelFuture<?>, Boolean>());
+		if (levels <= 0)
+			throw new IllegalArgumentException("levels must be positive");
+		nanosPerTick = unit.toNanos(tickDuration);
+		if (nanosPerTick < MIN_TICK_DURATION)
+			throw new IllegalArgumentException("tickDuration must be at least 100 microseconds");
+		worker = new Worker();
+		this.wakeup = wakeup;
+		this.taskExecutor = taskExecutor;
+		if (wakeup == null) {
+			workerThread = new Thread(worker, "hashed-wheel-timer-worker-thread");
+		} else {
+			workerThread = null;
+			worker.startTime = System.nanoTime();
+		}
+		wheels = new HashedWheelBucket[levels][buckets];
+		slotTicks = new long[levels];
+		for (int level = 0; level < levels; level++) {
+			if (level == 0)
+				slotTicks[level] = 1;
+			else if (slotTicks[level - 1] <= Long.MAX_VALUE / buckets)
+				slotTicks[level] = slotTicks[level - 1] * buckets;
+			else
+				throw new IllegalArgumentException("buckets^levels is too large");
+			for (int i = 0; i < buckets; i++)
+				wheels[level][i] = new HashedWheelBucket();
+		}
+		pendingTasks = new ConcurrentLinkedQueue<HashedWheelFuture<?>>();
+		canceledTasks = new ConcurrentLinkedQueue<HashedWheelFuture<?>>();
 		queuedTaskCount = new AtomicInteger(0);
+		tickLag = new LatencyStats();
+		unreapedCanceledCount = new AtomicInteger(0);
 
-		ReadWriteLock rwLock = new ReentrantReadWriteLock();
-		readLock = rwLock.readLock();
-		writeLock = rwLock.writeLock();
+		if (workerThread != null)
+			workerThread.start();
+	}
 
-		workerThread.start();
+	public ScheduledHashedWheelExecutor(int buckets, int levels, long tickDuration, TimeUnit unit) {
+		this(buckets, levels, tickDuration, unit, null, null);
+	}
+
+	public ScheduledHashedWheelExecutor(int buckets, long tickDuration, TimeUnit unit) {
+		this(buckets, 1, tickDuration, unit);
 	}
 
 	/**
 	 * Allocate a ScheduledHashWheelExecutor with the default values; that is,
-	 * 512 buckets and 100 milliseconds per tick.
+	 * a single wheel of 512 buckets and 100 milliseconds per tick.
 	 */
 	public ScheduledHashedWheelExecutor() {
 		this(512, 100, TimeUnit.MILLISECONDS);
 	}
 
 	/**
-	 * Finds the ceiling of (x / y). If y is positive and x is non-positive, the
-	 * result is always less than or equal to 1.
-	 * @param x must be positive
-	 * @param y must be positive
-	 * @return
+	 * Only for an executor that was constructed with a wakeup, and only from
+	 * the thread that calls runDueTicks(). Ticks that have nothing to expire
+	 * are skipped, so an owner that waits this long only wakes up when a task
+	 * is due or has to move down a wheel. Until the next runDueTicks(),
+	 * scheduling a task that is due any sooner runs the wakeup.
+	 * @return nanoseconds until runDueTicks() has to be called next, 0 if it
+	 * is already late, or -1 if no tasks are scheduled.
+	 */
+	public long nanosUntilNextTick() {
+		if (queuedTaskCount.get() == 0)
+			return -1;
+
+		//publish before looking at pendingTasks, so that a task that we miss
+		//there is compared against a plan that doesn't account for it
+		long next = worker.nextBusyTick();
+		plannedTick = next;
+		driverWaiting = true;
+		for (HashedWheelFuture<?> future : pendingTasks)
+			next = Math.min(next, Math.max(worker.deadlineTick(future), worker.tick));
+		plannedTick = next;
+		if (next == Long.MAX_VALUE)
+			//only tasks that are being submitted, and they'll wake us up
+			return -1;
+		return Math.max(startTimeOfTick(next) - System.nanoTime(), 0);
+	}
+
+	private long startTimeOfTick(long tick) {
+		return worker.startTime + (tick + 1) * nanosPerTick;
+	}
+
+	/**
+	 * Only for an executor that was constructed with a wakeup. Runs every
+	 * tick that is due, including any that were missed, on the calling
+	 * thread.
+	 */
+	public void runDueTicks() {
+		assert workerThread == null;
+		driverWaiting = false;
+		worker.runDueTicks(System.nanoTime());
+	}
+
+	/**
+	 * @return how long after its scheduled time each tick actually started.
+	 * Lag that keeps growing means tasks take longer than a tick to run.
+	 */
+	public LatencyStats getTickLag() {
+		return tickLag;
+	}
+
+	public long getTickCount() {
+		return ticks;
+	}
+
+	/**
+	 * @return the amount of tasks that were run or dispatched to the
+	 * taskExecutor, over every tick.
+	 */
+	public long getExpiredTaskCount() {
+		return tasksExpired;
+	}
+
+	public long getMaxTasksPerTick() {
+		return maxTasksPerTick;
+	}
+
+	/**
+	 * @return the amount of tasks that are scheduled and were neither run to
+	 * completion nor canceled yet, including the next runs of periodic tasks.
+	 */
+	public int getScheduledTaskCount() {
+		return queuedTaskCount.get();
+	}
+
+	/**
+	 * @return the amount of canceled tasks that the wheel hasn't let go of
+	 * yet. They're normally reaped on the next tick, so this only grows if
+	 * ticks are falling behind.
 	 */
-	private int ceil(int x, int y) {
-		return ((x - 1) / y) + 1;
+	public int getUnreapedCanceledCount() {
+		return unreapedCanceledCount.get();
+	}
+
+	@Override
+	public String toString() {
+		long tickCount = ticks;
+		return "ticks=" + tickCount
+			+ ", tickLag={" + tickLag + "}"
+			+ ", tasksPerTick=" + String.format("%.2f", tickCount == 0 ? 0 : (double) tasksExpired / tickCount)
+			+ ", maxTasksPerTick=" + maxTasksPerTick
+			+ ", scheduled=" + getScheduledTaskCount()
+			+ ", unreapedCanceled=" + getUnreapedCanceledCount();
 	}
 
 	private void schedule(HashedWheelFuture<?> future) {
-		readLock.lock();
-		try {
-			//never have totalTicks == 0, even if we just we scheduled the
-			//future for the exact same time as our last worker run. doing so
-			//would cause the task to be executed a full revolution late! never
-			//have totalTicks < 0, even if future.scheduledExecutionTime is less
-			//than lastExecuted. doing so would cause the task to be executed a
-			//few ticks late. in both cases, we should instead execute the task
-			//in the next tick, (totalTicks == 1). this means totalTicks >= 1
-			//always, so just Math.max the ceil result.
-
-			//(future.scheduledExecutionTime - lastExecuted) may be <= 0, but
-			//result of ceil with nonpositive x and positive y (millisPerTick
-			//must be positive) is always defined as <= 1, and with the
-			//surrounding Math.max, we can disregard an incorrect ceil result.
-			//this should be faster than using the more accurate Math.ceil,
-			//as it does integer division instead of floating point division,
-			//avoids some expensive method calls, and avoids lots of casting.
-			int totalTicks = Math.max(ceil((int) (future.scheduledExecutionTime - lastExecuted), millisPerTick), 1);
-			int revolutions = totalTicks / buckets.length;
-			int finalRevolutionTicks = totalTicks % buckets.length;
-			int bucket = (wheelCursor + finalRevolutionTicks) % buckets.length;
-			future.bucket = bucket;
-			future.remainingRevolutions = revolutions;
-			buckets[bucket].add(future);
-		} finally {
-			readLock.unlock();
-		}
+		//the worker picks it up on its next tick
+		pendingTasks.add(future);
+	}
+
+	private void submit(HashedWheelFuture<?> future) {
+		//count it before the worker can see it, so that a count of 0 always
+		//means that nothing live is left in the wheel
+		boolean wasIdle = queuedTaskCount.getAndIncrement() == 0;
+		schedule(future);
+		if (wakeup != null && (wasIdle || driverWaiting && worker.deadlineTick(future) < plannedTick))
+			//the owner may be waiting for a later tick, or for no tick at all
+			wakeup.run();
 	}
 
 	@Override
 	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 
-		HashedWheelFuture<Void> future = new VoidHashedWheelFuture(command, true, submitTime, unit.toMillis(delay), -1);
-		schedule(future);
-		queuedTaskCount.incrementAndGet();
+		HashedWheelFuture<Void> future = new VoidHashedWheelFuture(command, true, submitTime, unit.toNanos(delay), -1);
+		submit(future);
 		return future;
 	}
 
 	@Override
 	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 
-		HashedWheelFuture<V> future = new HashedWheelFutureImpl<V>(callable, submitTime, unit.toMillis(delay), -1);
-		schedule(future);
-		queuedTaskCount.incrementAndGet();
+		HashedWheelFuture<V> future = new HashedWheelFutureImpl<V>(callable, submitTime, unit.toNanos(delay), -1);
+		submit(future);
 		return future;
 	}
 
 	@Override
 	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 
-		HashedWheelFuture<Void> future = new VoidHashedWheelFuture(command, true, submitTime, unit.toMillis(initialDelay), period);
-		schedule(future);
-		queuedTaskCount.incrementAndGet();
+		HashedWheelFuture<Void> future = new VoidHashedWheelFuture(command, true, submitTime, unit.toNanos(initialDelay), unit.toNanos(period));
+		submit(future);
 		return future;
 	}
 
 	@Override
 	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 
-		HashedWheelFuture<Void> future = new VoidHashedWheelFuture(command, false, submitTime, unit.toMillis(initialDelay), delay);
-		schedule(future);
-		queuedTaskCount.incrementAndGet();
+		HashedWheelFuture<Void> future = new VoidHashedWheelFuture(command, false, submitTime, unit.toNanos(initialDelay), unit.toNanos(delay));
+		submit(future);
 		return future;
 	}
 
@@ -527,22 +890,36 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 	@Override
 	public List<Runnable> shutdownNow() {
 		shutdownImmediately = true;
-		List<Runnable> notRun = new ArrayList<Runnable>(queuedTaskCount.get());
-		Runnable r;
-		writeLock.lock();
-		try {
-			for (int i = 0; i < buckets.length; i++) {
-				for (Iterator<HashedWheelFuture<?>> iter = buckets[i].iterator(); iter.hasNext(); ) {
-					HashedWheelFuture<?> f = iter.next();
-					iter.remove();
-					if (!f.hasCommencedExecution() && (r = f.getRunnableTask()) != null)
-						notRun.add(r);
+		if (workerThread == null) {
+			//only the thread that drives the wheel may touch it
+			terminated = true;
+		} else if (Thread.currentThread() != workerThread) {
+			//the wheel belongs to the worker, so wait for it to let go
+			workerThread.interrupt();
+			boolean interrupted = false;
+			while (workerThread.isAlive()) {
+				try {
+					workerThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
 				}
 			}
-		} finally {
-			writeLock.unlock();
+			if (interrupted)
+				Thread.currentThread().interrupt();
 		}
-		workerThread.interrupt();
+		//otherwise, we're in a task and the worker stops once it returns
+
+		List<Runnable> notRun = new ArrayList<Runnable>(queuedTaskCount.get());
+		for (int level = 0; level < wheels.length; level++)
+			for (int i = 0; i < wheels[level].length; i++)
+				wheels[level][i].clear(notRun);
+		HashedWheelFuture<?> f;
+		Runnable r;
+		while ((f = pendingTasks.poll()) != null)
+			if (!f.hasCommencedExecution() && (r = f.getRunnableTask()) != null)
+				notRun.add(r);
+		canceledTasks.clear();
+		unreapedCanceledCount.set(0);
 		return notRun;
 	}
 
@@ -558,53 +935,51 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 
 	@Override
 	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		if (workerThread == null)
+			return terminated;
 		workerThread.join(unit.toMillis(timeout));
 		return !workerThread.isAlive();
 	}
 
 	@Override
 	public <T> Future<T> submit(Callable<T> task) {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 		HashedWheelFuture<T> future = new HashedWheelFutureImpl<T>(task, submitTime, 0, -1);
-		schedule(future);
-		queuedTaskCount.incrementAndGet();
+		submit(future);
 		return future;
 	}
 
 	@Override
 	public <T> Future<T> submit(Runnable task, T result) {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 		HashedWheelFuture<T> future = new HashedWheelFutureKnownResult<T>(task, result, submitTime, 0, -1);
-		schedule(future);
-		queuedTaskCount.incrementAndGet();
+		submit(future);
 		return future;
 	}
 
 	@Override
 	public Future<?> submit(Runnable task) {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 		HashedWheelFuture<Void> future = new VoidHashedWheelFuture(task, true, submitTime, 0, -1);
-		schedule(future);
-		queuedTaskCount.incrementAndGet();
+		submit(future);
 		return future;
 	}
 
 	@Override
 	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
 		List<HashedWheelFuture<T>> futures = new ArrayList<HashedWheelFuture<T>>(tasks.size());
 		for (Callable<T> task : tasks) {
 			HashedWheelFuture<T> future = new HashedWheelFutureImpl<T>(task, submitTime, 0, -1);
-			schedule(future);
-			queuedTaskCount.incrementAndGet();
+			submit(future);
 			futures.add(future);
 		}
 		boolean interrupted = false;
@@ -627,15 +1002,14 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 
 	@Override
 	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
-		long deadline = submitTime + unit.toMillis(timeout);
+		long deadline = submitTime + unit.toNanos(timeout);
 		List<HashedWheelFuture<T>> futures = new ArrayList<HashedWheelFuture<T>>(tasks.size());
 		for (Callable<T> task : tasks) {
 			HashedWheelFuture<T> future = new HashedWheelFutureImpl<T>(task, submitTime, 0, -1);
-			schedule(future);
-			queuedTaskCount.incrementAndGet();
+			submit(future);
 			futures.add(future);
 		}
 		boolean interrupted = false, timedOut = false;
@@ -665,10 +1039,9 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 			throw new IllegalArgumentException("tasks is empty");
 		List<HashedWheelFutureImpl<T>> futures = new ArrayList<HashedWheelFutureImpl<T>>(tasks.size());
 		for (Callable<T> task : tasks) {
-			submitTime = System.currentTimeMillis();
+			submitTime = System.nanoTime();
 			HashedWheelFutureImpl<T> future = new HashedWheelFutureImpl<T>(task, submitTime, 0, -1);
-			schedule(future);
-			queuedTaskCount.incrementAndGet();
+			submit(future);
 			futures.add(future);
 		}
 		T result = null;
@@ -711,18 +1084,17 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 
 	@Override
 	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-		long submitTime = System.currentTimeMillis();
+		long submitTime = System.nanoTime();
 		if (isShutdown())
 			throw new RejectedExecutionException("shutdown");
-		long timeoutTime = submitTime + unit.toMillis(timeout);
+		long timeoutTime = submitTime + unit.toNanos(timeout);
 		if (tasks.isEmpty())
 			throw new IllegalArgumentException("tasks is empty");
 		List<HashedWheelFutureImpl<T>> futures = new ArrayList<HashedWheelFutureImpl<T>>(tasks.size());
 		for (Callable<T> task : tasks) {
-			submitTime = System.currentTimeMillis();
+			submitTime = System.nanoTime();
 			HashedWheelFutureImpl<T> future = new HashedWheelFutureImpl<T>(task, submitTime, 0, -1);
-			schedule(future);
-			queuedTaskCount.incrementAndGet();
+			submit(future);
 			futures.add(future);
 		}
 		T result = null;
@@ -745,7 +1117,7 @@ public class ScheduledHashedWheelExecutor implements ScheduledExecutorService {
 						gotResult = true;
 					}
 				} else {
-					timedOut = timedOut || System.currentTimeMillis() >= timeoutTime;
+					timedOut = timedOut || System.nanoTime() - timeoutTime >= 0;
 					if (interrupted || gotResult || timedOut)
 						future.cancel(false);
 					else
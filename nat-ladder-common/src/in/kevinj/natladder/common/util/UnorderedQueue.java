@@ -1,7 +1,7 @@
 package in.kevinj.natladder.common.util;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -11,21 +11,21 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * All methods of this class are thread safe.
  * @author GoldenKevin
  */
-public class UnorderedQueue {
-	private final Queue<ByteBuffer> queued;
+public class UnorderedQueue<E> {
+	private final Queue<E> queued;
 	private final AtomicBoolean writeInProgress;
 
 	public UnorderedQueue() {
-		queued = new ConcurrentLinkedQueue<ByteBuffer>();
+		queued = new ConcurrentLinkedQueue<E>();
 		writeInProgress = new AtomicBoolean(false);
 	}
 
 	/**
 	 *
 	 * @param orderNo a unique value received from getNextPush()
-	 * @param element the ByteBuffer to queue
+	 * @param element the element to queue
 	 */
-	public void insert(ByteBuffer element) {
+	public void insert(E element) {
 		queued.offer(element);
 	}
 
@@ -43,13 +43,28 @@ public class UnorderedQueue {
 
 	/**
 	 *
-	 * @return a list of all ByteBuffers queued as of this moment.
+	 * @return a list of all elements queued as of this moment.
 	 */
-	public List<ByteBuffer> pop() {
-		List<ByteBuffer> consecutive = new ArrayList<ByteBuffer>();
-		ByteBuffer last;
+	public List<E> pop() {
+		List<E> consecutive = new ArrayList<E>();
+		E last;
 		while ((last = queued.poll()) != null)
 			consecutive.add(last);
 		return consecutive;
 	}
+
+	/**
+	 * Like pop(), but moves the elements into a collection that the caller
+	 * reuses instead of a new list.
+	 * @return the number of elements that were moved.
+	 */
+	public int drainTo(Collection<? super E> to) {
+		int drained = 0;
+		E last;
+		while ((last = queued.poll()) != null) {
+			to.add(last);
+			drained++;
+		}
+		return drained;
+	}
 }
\ No newline at end of file
@@ -2,5 +2,7 @@
 @TITLE Central Relay
 SET CENTRAL_RELAY_HOST=0.0.0.0
 SET CENTRAL_RELAY_PORT=13425
+REM lets the event loops replace the selected key set on JDK 9+. older JVMs ignore this variable.
+SET JDK_JAVA_OPTIONS=--add-opens java.base/sun.nio.ch=ALL-UNNAMED %JDK_JAVA_OPTIONS%
 java -classpath "%~dp0nat-ladder-common\bin;%~dp0nat-ladder-central\bin" -ea -Djava.util.logging.config.file="%~dp0logging.properties" in.kevinj.natladder.centralrelay.NatLadderCentralRelay %CENTRAL_RELAY_HOST% %CENTRAL_RELAY_PORT%
 pause
@@ -4,5 +4,7 @@ SET CENTRAL_RELAY_HOST=kevinj.in
 SET CENTRAL_RELAY_PORT=13425
 SET IDENTIFIER=test
 SET PASSWORD=test
+REM lets the event loops replace the selected key set on JDK 9+. older JVMs ignore this variable.
+SET JDK_JAVA_OPTIONS=--add-opens java.base/sun.nio.ch=ALL-UNNAMED %JDK_JAVA_OPTIONS%
 java -classpath "%~dp0nat-ladder-common\bin;%~dp0nat-ladder-client\bin" -ea -Djava.util.logging.config.file="%~dp0logging.properties" in.kevinj.natladder.entrynode.NatLadderEntryNode %CENTRAL_RELAY_HOST% %CENTRAL_RELAY_PORT% %IDENTIFIER% %PASSWORD%
 pause
@@ -5,5 +5,8 @@ CENTRAL_RELAY_HOST="kevinj.in"
 CENTRAL_RELAY_PORT=13425
 IDENTIFIER="test"
 PASSWORD="test"
+# lets the event loops replace the selected key set on JDK 9+. older JVMs ignore this variable.
+JDK_JAVA_OPTIONS="--add-opens java.base/sun.nio.ch=ALL-UNNAMED $JDK_JAVA_OPTIONS"
+export JDK_JAVA_OPTIONS
 java -classpath $dp0"nat-ladder-common/bin:"$dp0"nat-ladder-client/bin" -ea -Djava.util.logging.config.file=$dp0"logging.properties" in.kevinj.natladder.entrynode.NatLadderEntryNode $CENTRAL_RELAY_HOST $CENTRAL_RELAY_PORT $IDENTIFIER $PASSWORD
 #read -n1 -rsp $'Press any key to continue . . . \n'
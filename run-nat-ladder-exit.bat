@@ -6,5 +6,7 @@ SET IDENTIFIER=test
 SET PASSWORD=test
 SET TERMINUS_HOST=localhost
 SET TERMINUS_PORT=8080
+REM lets the event loops replace the selected key set on JDK 9+. older JVMs ignore this variable.
+SET JDK_JAVA_OPTIONS=--add-opens java.base/sun.nio.ch=ALL-UNNAMED %JDK_JAVA_OPTIONS%
 java -classpath "%~dp0nat-ladder-common\bin;%~dp0nat-ladder-client\bin" -ea -Djava.util.logging.config.file="%~dp0logging.properties" in.kevinj.natladder.exitnode.NatLadderExitNode %CENTRAL_RELAY_HOST% %CENTRAL_RELAY_PORT% %IDENTIFIER% %PASSWORD% %TERMINUS_HOST% %TERMINUS_PORT%
 pause
@@ -7,5 +7,8 @@ IDENTIFIER="test"
 PASSWORD="test"
 TERMINUS_HOST="localhost"
 TERMINUS_PORT=8080
+# lets the event loops replace the selected key set on JDK 9+. older JVMs ignore this variable.
+JDK_JAVA_OPTIONS="--add-opens java.base/sun.nio.ch=ALL-UNNAMED $JDK_JAVA_OPTIONS"
+export JDK_JAVA_OPTIONS
 java -classpath $dp0"nat-ladder-common/bin:"$dp0"nat-ladder-client/bin" -ea -Djava.util.logging.config.file=$dp0"logging.properties" in.kevinj.natladder.exitnode.NatLadderExitNode $CENTRAL_RELAY_HOST $CENTRAL_RELAY_PORT $IDENTIFIER $PASSWORD $TERMINUS_HOST $TERMINUS_PORT
 #read -n1 -rsp $'Press any key to continue . . . \n'
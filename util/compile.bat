@@ -22,4 +22,18 @@ SET found=
 FOR /R "%~dp0..\nat-ladder-client\src" %%F IN (*.java) DO SET found=!found! "%%F"
 javac -classpath "%~dp0..\nat-ladder-common\bin" -d "%~dp0..\nat-ladder-client\bin" %found%
 
+IF NOT EXIST "%~dp0..\nat-ladder-codegen\bin" MKDIR "%~dp0..\nat-ladder-codegen\bin"
+DEL /Q "%~dp0..\nat-ladder-codegen\bin\*.*"
+FOR /D %%F IN ("%~dp0..\nat-ladder-codegen\bin\*.*") DO RMDIR /S /Q "%%F"
+SET found=
+FOR /R "%~dp0..\nat-ladder-codegen\src" %%F IN (*.java) DO SET found=!found! "%%F"
+javac -d "%~dp0..\nat-ladder-codegen\bin" %found%
+
+IF NOT EXIST "%~dp0..\nat-ladder-bench\bin" MKDIR "%~dp0..\nat-ladder-bench\bin"
+DEL /Q "%~dp0..\nat-ladder-bench\bin\*.*"
+FOR /D %%F IN ("%~dp0..\nat-ladder-bench\bin\*.*") DO RMDIR /S /Q "%%F"
+SET found=
+FOR /R "%~dp0..\nat-ladder-bench\src" %%F IN (*.java) DO SET found=!found! "%%F"
+javac -classpath "%~dp0..\nat-ladder-common\bin;%~dp0..\nat-ladder-central\bin;%~dp0..\nat-ladder-client\bin" -d "%~dp0..\nat-ladder-bench\bin" %found%
+
 pause
@@ -12,3 +12,11 @@ javac -classpath $dp0"../nat-ladder-common/bin" -d $dp0"../nat-ladder-central/bi
 rm -rf $dp0"../nat-ladder-client/bin"
 mkdir $dp0"../nat-ladder-client/bin"
 javac -classpath $dp0"../nat-ladder-common/bin" -d $dp0"../nat-ladder-client/bin" $(find $dp0"../nat-ladder-client/src/" -name "*.java")
+
+rm -rf $dp0"../nat-ladder-codegen/bin"
+mkdir $dp0"../nat-ladder-codegen/bin"
+javac -d $dp0"../nat-ladder-codegen/bin" $(find $dp0"../nat-ladder-codegen/src/" -name "*.java")
+
+rm -rf $dp0"../nat-ladder-bench/bin"
+mkdir $dp0"../nat-ladder-bench/bin"
+javac -classpath $dp0"../nat-ladder-common/bin":$dp0"../nat-ladder-central/bin":$dp0"../nat-ladder-client/bin" -d $dp0"../nat-ladder-bench/bin" $(find $dp0"../nat-ladder-bench/src/" -name "*.java")